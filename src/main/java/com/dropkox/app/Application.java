@@ -1,5 +1,7 @@
 package com.dropkox.app;
 
+import com.dropkox.synchronizer.StartupReconciler;
+import com.dropkox.synchronizer.SynchronizationService;
 import com.dropkox.synchronizer.drive.GoogleDriveSynchronizer;
 import com.dropkox.synchronizer.filesystem.FilesystemSynchronizer;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,16 +20,28 @@ public class Application implements CommandLineRunner {
 
     private final GoogleDriveSynchronizer googleDriveSynchronizer;
     private final FilesystemSynchronizer filesystemSynchronizer;
+    private final SynchronizationService synchronizationService;
+    private final StartupReconciler startupReconciler;
 
     @Autowired
-    public Application(GoogleDriveSynchronizer googleDriveSynchronizer, FilesystemSynchronizer filesystemSynchronizer) {
+    public Application(GoogleDriveSynchronizer googleDriveSynchronizer, FilesystemSynchronizer filesystemSynchronizer,
+                       SynchronizationService synchronizationService, StartupReconciler startupReconciler) {
         this.googleDriveSynchronizer = googleDriveSynchronizer;
         this.filesystemSynchronizer = filesystemSynchronizer;
+        this.synchronizationService = synchronizationService;
+        this.startupReconciler = startupReconciler;
     }
 
     @Override
     public void run(String... args) throws Exception {
+        synchronizationService.replayPendingOperations();
+        filesystemSynchronizer.holdEvents();
         filesystemSynchronizer.startListening();
+        try {
+            startupReconciler.reconcile();
+        } finally {
+            filesystemSynchronizer.releaseEvents();
+        }
         googleDriveSynchronizer.startListening();
     }
     public static void main(String[] args) throws JAXBException {
@@ -5,6 +5,7 @@ import com.dropkox.categorizer.service.CategoryRetriever;
 import com.dropkox.categorizer.service.ImageCategorizationService;
 import com.dropkox.categorizer.suppliers.UrlType;
 import com.dropkox.core.exceptions.NoLabelsAssignedException;
+import com.dropkox.core.metrics.SyncMetrics;
 import com.dropkox.model.EventType;
 import com.dropkox.model.FileType;
 import com.dropkox.model.ImageLabel;
@@ -43,6 +44,8 @@ public class CategorizationFileManagingService implements IFileSystemEventProces
 
     @NonNull
     private ImageCategorizationService imageCategorizationService;
+    @NonNull
+    private SyncMetrics syncMetrics;
 
     private RecursiveWatcherService recursiveWatcherService;
     private CategoryRetriever categoryRetriever;
@@ -56,7 +59,7 @@ public class CategorizationFileManagingService implements IFileSystemEventProces
             inputFolder.mkdirs();
         }
         readExistingCategories();
-        recursiveWatcherService = new RecursiveWatcherService(this, inputFolder);
+        recursiveWatcherService = new RecursiveWatcherService(this, inputFolder, syncMetrics);
         categoryRetriever = new CategoryRetriever();
 
         try {
@@ -0,0 +1,16 @@
+package com.dropkox.core.concurrent;
+
+/**
+ * What happens to a submitter when a bounded queue is full.
+ */
+public enum BackpressurePolicy {
+    /**
+     * The submitter waits until there is room, slowing down whoever produces the events.
+     */
+    BLOCK,
+    /**
+     * The submission fails immediately with {@link java.util.concurrent.RejectedExecutionException},
+     * leaving it to the submitter to retry later.
+     */
+    REJECT
+}
@@ -0,0 +1,54 @@
+package com.dropkox.core.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calls to a failing service. After the configured number of consecutive failures the circuit opens and
+ * calls are refused for the open time. Then it lets calls through again: the first outcome either closes the
+ * circuit or opens it for another round.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+
+    public CircuitBreaker(final int failureThreshold, final long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos)
+            state = State.HALF_OPEN;
+        return state != State.OPEN;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * @return true when this failure opened the circuit
+     */
+    public synchronized boolean recordFailure() {
+        consecutiveFailures++;
+        if (state == State.OPEN || (state == State.CLOSED && consecutiveFailures < failureThreshold))
+            return false;
+        state = State.OPEN;
+        openedAtNanos = System.nanoTime();
+        return true;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
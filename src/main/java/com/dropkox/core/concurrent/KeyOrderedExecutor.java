@@ -0,0 +1,157 @@
+package com.dropkox.core.concurrent;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded worker pool which runs tasks sharing the same key one after another, in submission order,
+ * while tasks of different keys run concurrently.
+ * When the pool already holds {@code capacity} tasks, submitting blocks until one of them completes.
+ */
+@Log4j
+public class KeyOrderedExecutor {
+
+    private final String name;
+    private final ExecutorService workers;
+    private final Semaphore capacity;
+
+    private final Map<Object, Queue<Runnable>> pendingByKey = new HashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public KeyOrderedExecutor(@NonNull final String name, final int threads, final int capacity, @NonNull final SyncMetrics syncMetrics) {
+        this.name = name;
+        this.workers = Executors.newFixedThreadPool(threads, namedThreadFactory(name));
+        this.capacity = new Semaphore(capacity);
+        syncMetrics.gauge(name + ".queued", queued::get);
+        syncMetrics.gauge(name + ".in-flight", inFlight::get);
+    }
+
+    public void execute(@NonNull final Object key, @NonNull final Runnable task) throws InterruptedException {
+        capacity.acquire();
+        enqueue(key, task);
+    }
+
+    /**
+     * Same as {@link #execute(Object, Runnable)}, but lets the caller wait for the task.
+     */
+    public CompletableFuture<Void> submit(@NonNull final Object key, @NonNull final Runnable task) throws InterruptedException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        execute(key, completing(task, future));
+        return future;
+    }
+
+    /**
+     * Queues the task unless the pool is full, according to the policy either waiting for room
+     * or failing with {@link RejectedExecutionException}.
+     */
+    public CompletableFuture<Void> submit(@NonNull final Object key, @NonNull final Runnable task,
+                                          @NonNull final BackpressurePolicy policy) throws InterruptedException {
+        if (policy == BackpressurePolicy.BLOCK)
+            return submit(key, task);
+        if (!capacity.tryAcquire())
+            throw new RejectedExecutionException(name + " is full");
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        enqueue(key, completing(task, future));
+        return future;
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    private void enqueue(Object key, Runnable task) {
+        queued.incrementAndGet();
+        synchronized (pendingByKey) {
+            Queue<Runnable> pending = pendingByKey.computeIfAbsent(key, k -> new ArrayDeque<>());
+            pending.add(task);
+            if (pending.size() == 1)
+                workers.execute(() -> runNext(key));
+        }
+    }
+
+    private void runNext(Object key) {
+        Runnable task;
+        synchronized (pendingByKey) {
+            task = pendingByKey.get(key).peek();
+        }
+        while (task != null) {
+            boolean completed = false;
+            try {
+                run(key, task);
+                completed = true;
+            } finally {
+                synchronized (pendingByKey) {
+                    Queue<Runnable> pending = pendingByKey.get(key);
+                    pending.poll();
+                    task = pending.peek();
+                    if (task == null)
+                        pendingByKey.remove(key);
+                    else if (!completed)
+                        // this worker dies with the error, the remaining tasks of the key go on in another one
+                        workers.execute(() -> runNext(key));
+                }
+            }
+        }
+    }
+
+    private void run(Object key, Runnable task) {
+        queued.decrementAndGet();
+        inFlight.incrementAndGet();
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            log.warn(name + ": task for " + key + " failed", e);
+        } finally {
+            inFlight.decrementAndGet();
+            capacity.release();
+        }
+    }
+
+    private static Runnable completing(Runnable task, CompletableFuture<Void> future) {
+        return () -> {
+            try {
+                task.run();
+                future.complete(null);
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            }
+        };
+    }
+
+    private static ThreadFactory namedThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
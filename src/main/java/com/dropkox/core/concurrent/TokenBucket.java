@@ -0,0 +1,53 @@
+package com.dropkox.core.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter shared by concurrent callers. Tokens accrue at a fixed rate up to the burst size. A caller takes
+ * its tokens right away, going into debt when there are not enough of them, and then waits until the debt is
+ * paid off, so callers are served in the order they came and the rate holds however many of them there are.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(final double tokensPerSecond, final int burst) {
+        if (tokensPerSecond <= 0 || burst < 1)
+            throw new IllegalArgumentException("Rate and burst have to be positive");
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes the tokens, waiting until the bucket holds them.
+     *
+     * @return nanoseconds waited
+     */
+    public long acquire(final int permits) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= permits;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        return waitNanos;
+    }
+
+    public synchronized double getAvailableTokens() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,60 @@
+package com.dropkox.core.hash;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Computes MD5 of everything read through it, so content is verified while it is transferred rather than read twice.
+ */
+public class DigestingChannel implements ReadableByteChannel {
+
+    private final ReadableByteChannel delegate;
+    private final MessageDigest md5 = Checksums.newMd5();
+    private long count;
+
+    public DigestingChannel(@NonNull final ReadableByteChannel delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int read(final ByteBuffer destination) throws IOException {
+        int start = destination.position();
+        int read = delegate.read(destination);
+        if (read > 0) {
+            ByteBuffer readBytes = destination.duplicate();
+            readBytes.limit(start + read);
+            readBytes.position(start);
+            md5.update(readBytes);
+            count += read;
+        }
+        return read;
+    }
+
+    /**
+     * @return number of bytes read so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return lowercase hex MD5 of the bytes read, to be called once the content was read
+     */
+    public String getMd5() {
+        return Checksums.toHex(md5.digest());
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
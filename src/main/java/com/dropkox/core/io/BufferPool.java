@@ -0,0 +1,49 @@
+package com.dropkox.core.io;
+
+import lombok.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed number of equally sized direct buffers shared by all transfers. Channel reads and writes through a direct
+ * buffer skip the copy into a heap array, and allocating direct memory is expensive, so the buffers are reused.
+ * When every buffer is taken, acquiring waits for one to be released, which also bounds the transfer memory.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    public BufferPool(final int bufferSize, final int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null)
+            return buffer;
+        if (allocated.incrementAndGet() <= maxBuffers)
+            return ByteBuffer.allocateDirect(bufferSize);
+        allocated.decrementAndGet();
+        return free.take();
+    }
+
+    public void release(@NonNull final ByteBuffer buffer) {
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getAllocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,55 @@
+package com.dropkox.core.metrics;
+
+import lombok.NonNull;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters and gauges of the synchronization engine, published through the actuator metrics endpoint.
+ */
+@Component
+public class SyncMetrics implements PublicMetrics {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    public void increment(@NonNull final String name) {
+        add(name, 1);
+    }
+
+    public void add(@NonNull final String name, final long delta) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    public long get(@NonNull final String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Registers a gauge which value is sampled every time the metrics are read.
+     *
+     * @param name     metric name
+     * @param supplier supplier of the current value
+     */
+    public void gauge(@NonNull final String name, @NonNull final Supplier<? extends Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        counters.forEach((name, counter) -> metrics.add(new Metric<>("counter." + name, counter.sum())));
+        gauges.forEach((name, supplier) -> metrics.add(new Metric<>("gauge." + name, supplier.get())));
+        return metrics;
+    }
+}
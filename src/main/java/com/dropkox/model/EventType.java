@@ -1,5 +1,5 @@
 package com.dropkox.model;
 
 public enum EventType {
-    CREATE, DELETE, MODIFY
+    CREATE, DELETE, MODIFY, MOVE
 }
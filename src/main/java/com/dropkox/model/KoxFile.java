@@ -24,4 +24,10 @@ public class KoxFile {
     @NonNull
     private FileType fileType;
     private Date modificationDate;
+    private Long size;
+    private String checksum;
+    /**
+     * Path the file had before it was moved or renamed, set for {@link EventType#MOVE} events only.
+     */
+    private String previousPath;
 }
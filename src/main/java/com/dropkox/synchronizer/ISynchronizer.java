@@ -4,9 +4,43 @@ import com.dropkox.model.FileEvent;
 import com.dropkox.model.KoxFile;
 
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
 
 public interface ISynchronizer {
     void startListening();
     void process(FileEvent fileEvent);
     InputStream getInputStream(KoxFile koxFile);
+
+    /**
+     * @return lowercase hex MD5 of the file content or null when it cannot be determined
+     */
+    String getChecksum(KoxFile koxFile);
+
+    /**
+     * Opens the file content for a transfer to another synchronizer.
+     *
+     * @return content with its length and checksum when known or null when the content cannot be opened
+     */
+    default TransferSource openTransfer(KoxFile koxFile) {
+        InputStream inputStream = getInputStream(koxFile);
+        return inputStream == null ? null : TransferSource.builder()
+                .channel(Channels.newChannel(inputStream))
+                .contentLength(koxFile.getSize())
+                .build();
+    }
+
+    /**
+     * @return path of the file content on the local filesystem or null when the content is not file-backed
+     */
+    default Path getLocalPath(KoxFile koxFile) {
+        return null;
+    }
+
+    /**
+     * Emits create events of everything below the directory, for another synchronizer which lost track of it.
+     * Does nothing by default.
+     */
+    default void importSubtree(KoxFile directory) {
+    }
 }
@@ -0,0 +1,164 @@
+package com.dropkox.synchronizer;
+
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileEvent;
+import com.dropkox.model.FileType;
+import com.dropkox.model.KoxFile;
+import com.dropkox.synchronizer.state.SyncRecord;
+import lombok.Data;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Compares a local and a remote tree with the last synchronized state and produces the minimal set of events
+ * bringing both sides together:
+ * <ul>
+ * <li>a path changed on one side only is sent to the other side,</li>
+ * <li>a path changed on both sides or never synchronized goes the way of the newer version,</li>
+ * <li>a path missing on one side is deleted from the other one if it was synchronized and did not change since,
+ * otherwise it is sent again.</li>
+ * </ul>
+ * A directory is never deleted while something new or changed lies below it on either side; its unchanged
+ * contents are still deleted one by one.
+ */
+@Log4j
+@RequiredArgsConstructor
+class ReconciliationPlanner {
+
+    @NonNull
+    private ISynchronizer localSide;
+    @NonNull
+    private ISynchronizer remoteSide;
+
+    @Data
+    static class Plan {
+        private final List<FileEvent> events = new ArrayList<>();
+        private final List<SyncRecord> directoriesInSync = new ArrayList<>();
+        private final List<String> staleRecords = new ArrayList<>();
+    }
+
+    /**
+     * @param local   local tree keyed by path
+     * @param remote  remote tree keyed by path
+     * @param records all known sync records
+     * @return events in path order, so parents come before their children
+     */
+    Plan plan(@NonNull final Map<String, KoxFile> local, @NonNull final Map<String, KoxFile> remote,
+              @NonNull final Map<String, SyncRecord> records) {
+        Plan plan = new Plan();
+        Set<String> paths = new TreeSet<>(local.keySet());
+        paths.addAll(remote.keySet());
+        for (String path : paths) {
+            planPath(plan, local.get(path), remote.get(path), records.get(path));
+        }
+        keepDirectoriesWithChanges(plan.getEvents());
+        records.keySet().stream().filter(path -> !paths.contains(path)).forEach(plan.getStaleRecords()::add);
+        return plan;
+    }
+
+    private static void keepDirectoriesWithChanges(List<FileEvent> events) {
+        NavigableSet<String> changedPaths = events.stream()
+                .filter(event -> event.getEventType() != EventType.DELETE)
+                .map(event -> event.getKoxFile().getPath())
+                .collect(Collectors.toCollection(TreeSet::new));
+        events.removeIf(event -> {
+            KoxFile koxFile = event.getKoxFile();
+            if (event.getEventType() != EventType.DELETE || koxFile.getFileType() != FileType.DIR)
+                return false;
+            String prefix = koxFile.getPath() + "/";
+            String firstBelow = changedPaths.ceiling(prefix);
+            boolean changedBelow = firstBelow != null && firstBelow.startsWith(prefix);
+            if (changedBelow)
+                log.warn("Directory has new or changed contents, not deleting it: " + koxFile.getPath());
+            return changedBelow;
+        });
+    }
+
+    private void planPath(Plan plan, KoxFile localFile, KoxFile remoteFile, SyncRecord record) {
+        if (localFile != null && remoteFile != null) {
+            planExistingOnBothSides(plan, localFile, remoteFile, record);
+        } else if (localFile != null) {
+            if (record != null && !isLocalChanged(localFile, record))
+                plan.getEvents().add(event(deletion(localFile, remoteSide, Objects.toString(record.getRemoteId(), localFile.getPath())), EventType.DELETE));
+            else
+                plan.getEvents().add(event(localFile, EventType.CREATE));
+        } else {
+            if (record != null && !isRemoteChanged(remoteFile, record))
+                plan.getEvents().add(event(deletion(remoteFile, localSide, remoteFile.getPath()), EventType.DELETE));
+            else
+                plan.getEvents().add(event(remoteFile, EventType.CREATE));
+        }
+    }
+
+    private void planExistingOnBothSides(Plan plan, KoxFile localFile, KoxFile remoteFile, SyncRecord record) {
+        if (localFile.getFileType() != remoteFile.getFileType()) {
+            log.warn("Type conflict, leaving untouched: " + localFile.getPath());
+            return;
+        }
+        if (localFile.getFileType() == FileType.DIR) {
+            if (record == null)
+                plan.getDirectoriesInSync().add(SyncRecord.builder().path(localFile.getPath()).remoteId(remoteFile.getId()).build());
+            return;
+        }
+
+        boolean localChanged = record == null || isLocalChanged(localFile, record);
+        boolean remoteChanged = record == null || isRemoteChanged(remoteFile, record);
+        if (!localChanged && !remoteChanged)
+            return;
+        if (localChanged && !remoteChanged)
+            plan.getEvents().add(event(localFile, EventType.MODIFY));
+        else if (!localChanged)
+            plan.getEvents().add(event(remoteFile, EventType.MODIFY));
+        else
+            plan.getEvents().add(event(millisOf(localFile) >= millisOf(remoteFile) ? localFile : remoteFile, EventType.MODIFY));
+    }
+
+    private static boolean isLocalChanged(KoxFile localFile, SyncRecord record) {
+        return localFile.getFileType() == FileType.REGULAR_FILE && !Objects.equals(record.getLocalModifiedMillis(), millisOf(localFile));
+    }
+
+    private static boolean isRemoteChanged(KoxFile remoteFile, SyncRecord record) {
+        if (remoteFile.getFileType() == FileType.DIR)
+            return false;
+        return record.getRemoteMd5() != null
+                ? !Objects.equals(record.getRemoteId(), remoteFile.getId()) || !Objects.equals(record.getRemoteMd5(), remoteFile.getChecksum())
+                : !Objects.equals(record.getRemoteModifiedMillis(), millisOf(remoteFile));
+    }
+
+    private static long millisOf(KoxFile koxFile) {
+        return koxFile.getModificationDate() == null ? 0 : koxFile.getModificationDate().getTime();
+    }
+
+    /**
+     * Describes removal of the file as if it has been observed by the other side.
+     */
+    private static KoxFile deletion(KoxFile existing, ISynchronizer deletedBy, String id) {
+        return KoxFile.builder()
+                .source(deletedBy)
+                .id(id)
+                .path(existing.getPath())
+                .name(existing.getName())
+                .fileType(existing.getFileType())
+                .modificationDate(new Date())
+                .build();
+    }
+
+    private static FileEvent event(KoxFile koxFile, EventType eventType) {
+        return FileEvent.builder()
+                .koxFile(koxFile)
+                .eventType(eventType)
+                .timestamp(System.currentTimeMillis())
+                .build();
+    }
+}
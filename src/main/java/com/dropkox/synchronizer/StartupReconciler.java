@@ -0,0 +1,158 @@
+package com.dropkox.synchronizer;
+
+import com.dropkox.core.concurrent.BackpressurePolicy;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileEvent;
+import com.dropkox.model.FileType;
+import com.dropkox.model.KoxFile;
+import com.dropkox.synchronizer.drive.GoogleDriveSynchronizer;
+import com.dropkox.synchronizer.filesystem.FilesystemSynchronizer;
+import com.dropkox.synchronizer.state.SyncRecord;
+import com.dropkox.synchronizer.state.SyncStateStore;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Brings the local folder and Drive together after downtime. The local tree is walked in parallel while Drive is
+ * listed, both are diffed against the persisted {@link SyncRecord}s and the resulting uploads, downloads and deletes
+ * are fed into the {@link SynchronizationService}.
+ */
+@Log4j
+@Service
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class StartupReconciler {
+
+    @NonNull
+    private SynchronizationService synchronizationService;
+    @NonNull
+    private FilesystemSynchronizer filesystemSynchronizer;
+    @NonNull
+    private GoogleDriveSynchronizer googleDriveSynchronizer;
+    @NonNull
+    private SyncStateStore syncStateStore;
+    @NonNull
+    private SyncMetrics syncMetrics;
+
+    @Value("${sync.reconcile.max-in-flight:256}")
+    private int maxInFlight;
+
+    private final AtomicLong localScanMillis = new AtomicLong();
+    private final AtomicLong remoteListMillis = new AtomicLong();
+    private final AtomicLong planMillis = new AtomicLong();
+    private final AtomicLong remainingEvents = new AtomicLong();
+
+    @PostConstruct
+    public void registerMetrics() {
+        syncMetrics.gauge("reconcile.local.scan.ms", localScanMillis::get);
+        syncMetrics.gauge("reconcile.remote.list.ms", remoteListMillis::get);
+        syncMetrics.gauge("reconcile.plan.ms", planMillis::get);
+        syncMetrics.gauge("reconcile.remaining", remainingEvents::get);
+    }
+
+    public void reconcile() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        CompletableFuture<Map<String, KoxFile>> remoteListing =
+                CompletableFuture.supplyAsync(() -> timed(googleDriveSynchronizer::listRemoteFiles, remoteListMillis));
+        Map<String, KoxFile> local = timed(filesystemSynchronizer::listLocalFiles, localScanMillis);
+        Map<String, KoxFile> remote = remoteListing.join();
+        if (remote == null) {
+            log.warn("Cannot list Drive, skipping startup reconciliation");
+            return;
+        }
+
+        Map<String, SyncRecord> records = new HashMap<>();
+        syncStateStore.getRecords().forEach(record -> records.put(record.getPath(), record));
+        ISynchronizer localSide = synchronizationService.getRegistered(FilesystemSynchronizer.class);
+        ISynchronizer remoteSide = synchronizationService.getRegistered(GoogleDriveSynchronizer.class);
+        ReconciliationPlanner.Plan plan = timed(() -> new ReconciliationPlanner(localSide, remoteSide)
+                .plan(local, remote, records), planMillis);
+        plan.getDirectoriesInSync().forEach(syncStateStore::putRecord);
+        plan.getStaleRecords().forEach(syncStateStore::removeRecord);
+
+        log.info(String.format("Reconciliation of %d local and %d remote entries planned in %d ms: %d operations",
+                local.size(), remote.size(), System.currentTimeMillis() - start, plan.getEvents().size()));
+        execute(plan.getEvents());
+        log.info(String.format("Reconciliation finished in %d ms", System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Creates missing directories level by level, so that a parent always exists before its children,
+     * then runs all uploads and downloads at once and finally the deletes, deepest paths first.
+     */
+    private void execute(List<FileEvent> events) throws InterruptedException {
+        remainingEvents.set(events.size());
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Map<Integer, List<FileEvent>> directoriesByDepth = new TreeMap<>();
+        Map<Integer, List<FileEvent>> deletesByDepth = new TreeMap<>(Comparator.reverseOrder());
+        List<FileEvent> others = new ArrayList<>();
+        for (FileEvent event : events) {
+            KoxFile koxFile = event.getKoxFile();
+            if (koxFile.getFileType() == FileType.DIR && event.getEventType() == EventType.CREATE)
+                directoriesByDepth.computeIfAbsent(depthOf(koxFile.getPath()), d -> new ArrayList<>()).add(event);
+            else if (event.getEventType() == EventType.DELETE)
+                deletesByDepth.computeIfAbsent(depthOf(koxFile.getPath()), d -> new ArrayList<>()).add(event);
+            else
+                others.add(event);
+        }
+
+        for (List<FileEvent> level : directoriesByDepth.values()) {
+            submit(level, inFlight).join();
+        }
+        submit(others, inFlight).join();
+        for (List<FileEvent> level : deletesByDepth.values()) {
+            submit(level, inFlight).join();
+        }
+    }
+
+    private CompletableFuture<Void> submit(List<FileEvent> events, Semaphore inFlight) throws InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (FileEvent event : events) {
+            inFlight.acquire();
+            countPlanned(event);
+            futures.add(synchronizationService.accept(event, BackpressurePolicy.BLOCK).whenComplete((result, e) -> {
+                remainingEvents.decrementAndGet();
+                inFlight.release();
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void countPlanned(FileEvent event) {
+        if (event.getEventType() == EventType.DELETE)
+            syncMetrics.increment("reconcile.deletes");
+        else if (event.getKoxFile().getSource() instanceof FilesystemSynchronizer)
+            syncMetrics.increment("reconcile.uploads");
+        else
+            syncMetrics.increment("reconcile.downloads");
+    }
+
+    private static int depthOf(String path) {
+        return path.split("/").length;
+    }
+
+    private static <T> T timed(Supplier<T> supplier, AtomicLong millis) {
+        long start = System.currentTimeMillis();
+        try {
+            return supplier.get();
+        } finally {
+            millis.set(System.currentTimeMillis() - start);
+        }
+    }
+}
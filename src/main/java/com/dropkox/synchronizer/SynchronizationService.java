@@ -1,30 +1,177 @@
 package com.dropkox.synchronizer;
 
+import com.dropkox.core.concurrent.BackpressurePolicy;
+import com.dropkox.core.concurrent.KeyOrderedExecutor;
+import com.dropkox.core.metrics.SyncMetrics;
 import com.dropkox.model.FileEvent;
+import com.dropkox.model.KoxFile;
+import com.dropkox.synchronizer.state.PendingOperation;
+import com.dropkox.synchronizer.state.SyncStateStore;
 import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.ClassUtils;
 
-import java.util.HashSet;
-import java.util.Set;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 @Log4j
 @Service
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
 public class SynchronizationService {
 
-    private Set<ISynchronizer> synchronizers = new HashSet<>();
+    @NonNull
+    private SyncStateStore syncStateStore;
+    @NonNull
+    private SyncMetrics syncMetrics;
 
-    public void register(@NonNull final ISynchronizer synchronizer) {
+    @Value("${sync.dispatch.capacity:1000}")
+    private int laneCapacity;
+    @Value("${sync.dispatch.policy:BLOCK}")
+    private BackpressurePolicy backpressurePolicy;
+
+    private final Map<ISynchronizer, KeyOrderedExecutor> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the synchronizer with its own lane, so that a slow synchronizer does not hold back the others.
+     *
+     * @param parallelism number of events the synchronizer processes concurrently
+     */
+    public void register(@NonNull final ISynchronizer synchronizer, final int parallelism) {
         log.debug("Registering " + synchronizer);
-        this.synchronizers.add(synchronizer);
+        this.lanes.put(synchronizer, new KeyOrderedExecutor("sync.lane." + nameOf(synchronizer), parallelism, laneCapacity, syncMetrics));
     }
 
-    @Async
-    public void accept(@NonNull final FileEvent fileEvent) {
+    /**
+     * @return registered instance of the synchronizer, which is the one used as the source of its events
+     */
+    ISynchronizer getRegistered(@NonNull final Class<? extends ISynchronizer> type) {
+        return lanes.keySet().stream()
+                .filter(type::isInstance)
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException(type.getSimpleName() + " is not registered"));
+    }
+
+    /**
+     * Journals the event and queues it in the lanes of the other synchronizers. Once this method returns
+     * the event survives a restart: it stays pending until every synchronizer has processed it.
+     * Events of the same path are processed in the order they were accepted.
+     * <p>
+     * When a lane is full the call blocks or fails with {@link RejectedExecutionException},
+     * depending on {@code sync.dispatch.policy}.
+     *
+     * @return future completed when every synchronizer has processed the event
+     */
+    public CompletableFuture<Void> accept(@NonNull final FileEvent fileEvent) {
+        return accept(fileEvent, backpressurePolicy);
+    }
+
+    /**
+     * Same as {@link #accept(FileEvent)} with an explicit policy, for sources which pull their events
+     * and should rather be slowed down than rejected.
+     */
+    public CompletableFuture<Void> accept(@NonNull final FileEvent fileEvent, @NonNull final BackpressurePolicy policy) {
         log.info("Received: " + fileEvent);
-        this.synchronizers.stream().filter(s -> s != fileEvent.getKoxFile().getSource()).forEach(p -> p.process(fileEvent));
+        long operationId = syncStateStore.beginOperation(toPendingOperation(fileEvent));
+        return dispatch(operationId, fileEvent, policy);
+    }
+
+    /**
+     * Processes again the events which were accepted but not finished before the last shutdown.
+     */
+    public void replayPendingOperations() {
+        for (PendingOperation operation : syncStateStore.getPendingOperations()) {
+            Optional<ISynchronizer> source = lanes.keySet().stream().filter(s -> nameOf(s).equals(operation.getSource())).findFirst();
+            if (!source.isPresent()) {
+                log.warn("Unknown source of pending operation, dropping: " + operation);
+                syncStateStore.completeOperation(operation.getId());
+                continue;
+            }
+            log.info("Replaying: " + operation);
+            dispatch(operation.getId(), toFileEvent(operation, source.get()), BackpressurePolicy.BLOCK);
+        }
     }
 
+    @PreDestroy
+    public void stop() {
+        lanes.values().forEach(KeyOrderedExecutor::shutdown);
+    }
 
+    private CompletableFuture<Void> dispatch(long operationId, FileEvent fileEvent, BackpressurePolicy policy) {
+        List<CompletableFuture<Void>> processed = new ArrayList<>();
+        boolean queued = false;
+        try {
+            for (Map.Entry<ISynchronizer, KeyOrderedExecutor> lane : lanes.entrySet()) {
+                ISynchronizer synchronizer = lane.getKey();
+                if (synchronizer != fileEvent.getKoxFile().getSource())
+                    processed.add(lane.getValue().submit(fileEvent.getKoxFile().getPath(), () -> synchronizer.process(fileEvent), policy));
+            }
+            queued = true;
+        } catch (RejectedExecutionException e) {
+            syncMetrics.increment("sync.dispatch.rejected");
+            if (processed.isEmpty()) {
+                syncStateStore.completeOperation(operationId);
+                throw e;
+            }
+            log.warn("Lane full, operation left pending until restart: " + fileEvent);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted, operation left pending until restart: " + fileEvent);
+        }
+
+        boolean complete = queued;
+        return CompletableFuture.allOf(processed.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((result, e) -> {
+                    if (e != null)
+                        log.warn("Processing failed, operation left pending: " + fileEvent, e);
+                    else if (complete)
+                        syncStateStore.completeOperation(operationId);
+                });
+    }
+
+    private static PendingOperation toPendingOperation(FileEvent fileEvent) {
+        KoxFile koxFile = fileEvent.getKoxFile();
+        return PendingOperation.builder()
+                .source(nameOf(koxFile.getSource()))
+                .eventType(fileEvent.getEventType())
+                .fileType(koxFile.getFileType())
+                .fileId(koxFile.getId())
+                .path(koxFile.getPath())
+                .name(koxFile.getName())
+                .modificationMillis(koxFile.getModificationDate() == null ? null : koxFile.getModificationDate().getTime())
+                .size(koxFile.getSize())
+                .previousPath(koxFile.getPreviousPath())
+                .build();
+    }
+
+    private static FileEvent toFileEvent(PendingOperation operation, ISynchronizer source) {
+        return FileEvent.builder()
+                .koxFile(KoxFile.builder()
+                        .source(source)
+                        .id(operation.getFileId())
+                        .path(operation.getPath())
+                        .name(operation.getName())
+                        .fileType(operation.getFileType())
+                        .modificationDate(operation.getModificationMillis() == null ? null : new Date(operation.getModificationMillis()))
+                        .size(operation.getSize())
+                        .previousPath(operation.getPreviousPath())
+                        .build())
+                .eventType(operation.getEventType())
+                .timestamp(System.currentTimeMillis())
+                .build();
+    }
+
+    private static String nameOf(ISynchronizer synchronizer) {
+        return ClassUtils.getUserClass(synchronizer).getSimpleName();
+    }
 }
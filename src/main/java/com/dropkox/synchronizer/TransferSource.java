@@ -0,0 +1,33 @@
+package com.dropkox.synchronizer;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Content of a file opened for a transfer between synchronizers, together with what the source knows about it.
+ */
+@Builder
+@Getter
+public class TransferSource implements Closeable {
+
+    @NonNull
+    private final ReadableByteChannel channel;
+    /**
+     * Content length in bytes or null when unknown.
+     */
+    private final Long contentLength;
+    /**
+     * Lowercase hex MD5 of the content or null when unknown.
+     */
+    private final String md5;
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,49 @@
+package com.dropkox.synchronizer.drive;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the Drive change feed is polled next: right away after a poll which found changes, then with
+ * intervals doubling from the minimum up to the maximum while nothing changes. A push notification wakes the
+ * waiting poller up early.
+ */
+class ChangePollingSchedule {
+
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final Semaphore wakeUps = new Semaphore(0);
+    private volatile long intervalMillis;
+
+    ChangePollingSchedule(final long minIntervalMillis, final long maxIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+    }
+
+    void pollFinished(final boolean changesFound) {
+        if (changesFound)
+            intervalMillis = 0;
+        else
+            intervalMillis = Math.min(Math.max(minIntervalMillis, intervalMillis * 2), maxIntervalMillis);
+    }
+
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Waits for the current interval or until woken up.
+     *
+     * @return true when woken up before the interval passed
+     */
+    boolean awaitNextPoll() throws InterruptedException {
+        boolean wokenUp = intervalMillis == 0 || wakeUps.tryAcquire(intervalMillis, TimeUnit.MILLISECONDS);
+        // notifications received meanwhile are all served by the coming poll
+        wakeUps.drainPermits();
+        return wokenUp && intervalMillis > 0;
+    }
+
+    void wakeUp() {
+        wakeUps.release();
+    }
+}
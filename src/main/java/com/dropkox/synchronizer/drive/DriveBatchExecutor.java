@@ -0,0 +1,174 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces small Drive metadata requests (gets, folder creates, deletes) issued by concurrent callers into
+ * batch requests of up to {@value #MAX_BATCH_SIZE} operations. A batch is sent when it is full or when no
+ * further request arrived within the linger time. Operations failing on a transient error, alone or because the
+ * whole batch failed, are queued again after a backoff, so the flusher never sleeps. The batched operations are
+ * safe to repeat: gets, deletes and creates of reserved IDs.
+ */
+@Log4j
+class DriveBatchExecutor {
+
+    static final int MAX_BATCH_SIZE = 100;
+    private static final String BATCH_URL = "https://www.googleapis.com/batch/drive/v3";
+
+    private final Drive driveService;
+    private final DriveRequestExecutor requestExecutor;
+    private final long lingerMillis;
+    private final SyncMetrics syncMetrics;
+    private final ScheduledExecutorService retryScheduler;
+
+    private final BlockingQueue<PendingCall<?>> pendingCalls = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    DriveBatchExecutor(@NonNull final Drive driveService, @NonNull final DriveRequestExecutor requestExecutor,
+                       final long lingerMillis, @NonNull final SyncMetrics syncMetrics) {
+        this.driveService = driveService;
+        this.requestExecutor = requestExecutor;
+        this.lingerMillis = lingerMillis;
+        this.syncMetrics = syncMetrics;
+        this.flusher = new Thread(this::flushLoop, "drive-batch");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "drive-batch-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncMetrics.gauge("drive.batch.pending", pendingCalls::size);
+    }
+
+    <T> CompletableFuture<T> submit(@NonNull final DriveRequest<T> request) {
+        PendingCall<T> call = new PendingCall<>(request);
+        pendingCalls.add(call);
+        return call.future;
+    }
+
+    void shutdown() {
+        running = false;
+        flusher.interrupt();
+        retryScheduler.shutdownNow();
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                PendingCall<?> first = pendingCalls.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                List<PendingCall<?>> calls = new ArrayList<>(MAX_BATCH_SIZE);
+                calls.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (calls.size() < MAX_BATCH_SIZE) {
+                    PendingCall<?> next = pendingCalls.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    calls.add(next);
+                }
+                execute(calls);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void execute(List<PendingCall<?>> calls) {
+        syncMetrics.increment("drive.batch.requests");
+        syncMetrics.add("drive.batch.operations", calls.size());
+        if (calls.size() == 1) {
+            calls.get(0).executeAlone();
+            return;
+        }
+
+        try {
+            BatchRequest batch = driveService.batch();
+            batch.setBatchUrl(new GenericUrl(BATCH_URL));
+            for (PendingCall<?> call : calls) {
+                call.queue(batch);
+            }
+            requestExecutor.executeOnce(() -> {
+                batch.execute();
+                return null;
+            }, calls.size());
+        } catch (IOException e) {
+            log.warn("Batch of " + calls.size() + " requests failed: " + e.getMessage());
+            calls.forEach(call -> call.failed(e));
+        }
+    }
+
+    @RequiredArgsConstructor
+    private class PendingCall<T> {
+        private final DriveRequest<T> request;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int attempts;
+
+        private void executeAlone() {
+            try {
+                future.complete(requestExecutor.executeOnce(request::execute, 1));
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+
+        private void queue(BatchRequest batch) throws IOException {
+            request.queue(batch, new JsonBatchCallback<T>() {
+                @Override
+                public void onSuccess(T result, HttpHeaders responseHeaders) {
+                    future.complete(result);
+                }
+
+                @Override
+                public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                    GoogleJsonResponseException failure = new GoogleJsonResponseException(
+                            new HttpResponseException.Builder(error.getCode(), error.getMessage(), responseHeaders), error);
+                    requestExecutor.recordOutcome(failure);
+                    failed(failure);
+                }
+            });
+        }
+
+        private void failed(IOException failure) {
+            if (DriveRequestExecutor.isRetryable(failure) && ++attempts < requestExecutor.getMaxAttempts())
+                retryLater();
+            else
+                future.completeExceptionally(failure);
+        }
+
+        private void retryLater() {
+            syncMetrics.increment("drive.requests.retried");
+            try {
+                retryScheduler.schedule(() -> pendingCalls.add(this), requestExecutor.backoffMillis(attempts), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(new IOException("Batch executor is shut down"));
+            }
+        }
+    }
+}
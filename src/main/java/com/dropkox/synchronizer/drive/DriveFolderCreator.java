@@ -0,0 +1,193 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.GeneratedIds;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves folder paths to Drive IDs, creating the missing folders. A path is resolved at most once at a time:
+ * concurrent callers, e.g. uploads into the same new folder, share the pending resolution instead of each creating
+ * a folder of that name. Missing folders get IDs reserved up front with generateIds, so a create repeated after a
+ * lost response cannot leave a second folder behind. Folders below a folder created here are known to be missing
+ * and are created without a lookup; siblings are created concurrently and go out together in one batch per level.
+ */
+@Log4j
+class DriveFolderCreator {
+
+    static final String ROOT_ID = "root";
+    private static final int RESERVED_IDS_BATCH = 100;
+    private static final int CONFLICT = 409;
+
+    /**
+     * Finds an existing folder, locally cached or in Drive.
+     */
+    @FunctionalInterface
+    interface FolderLookup {
+        /**
+         * @return ID of the folder with the name at the path or null when there is none
+         */
+        String find(String name, String path);
+    }
+
+    @Value
+    private static class Folder {
+        String id;
+        /**
+         * Created by this resolver, so nothing can exist below it yet.
+         */
+        boolean created;
+    }
+
+    private final Drive driveService;
+    private final DriveRequestExecutor requestExecutor;
+    private final DriveBatchExecutor batchExecutor;
+    private final DriveMetadataCache metadataCache;
+    private final FolderLookup lookup;
+    private final String fileFields;
+    private final SyncMetrics syncMetrics;
+    private final ExecutorService resolver;
+
+    private final Map<String, CompletableFuture<Folder>> pending = new ConcurrentHashMap<>();
+    private final Queue<String> reservedIds = new ArrayDeque<>();
+
+    DriveFolderCreator(@NonNull final Drive driveService, @NonNull final DriveRequestExecutor requestExecutor,
+                       @NonNull final DriveBatchExecutor batchExecutor, @NonNull final DriveMetadataCache metadataCache,
+                       @NonNull final FolderLookup lookup, @NonNull final String fileFields, final int threads,
+                       @NonNull final SyncMetrics syncMetrics) {
+        this.driveService = driveService;
+        this.requestExecutor = requestExecutor;
+        this.batchExecutor = batchExecutor;
+        this.metadataCache = metadataCache;
+        this.lookup = lookup;
+        this.fileFields = fileFields;
+        this.syncMetrics = syncMetrics;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.resolver = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "drive-folders-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncMetrics.gauge("drive.folders.pending", pending::size);
+    }
+
+    /**
+     * @return ID of the folder at the path, created together with its missing ancestors
+     */
+    CompletableFuture<String> folderId(@NonNull final String path) {
+        return resolve(normalize(path)).thenApply(Folder::getId);
+    }
+
+    void shutdown() {
+        resolver.shutdownNow();
+    }
+
+    private CompletableFuture<Folder> resolve(String path) {
+        if (path.isEmpty())
+            return CompletableFuture.completedFuture(new Folder(ROOT_ID, false));
+        CompletableFuture<Folder> future = new CompletableFuture<>();
+        CompletableFuture<Folder> running = pending.putIfAbsent(path, future);
+        if (running != null) {
+            syncMetrics.increment("drive.folders.shared");
+            return running;
+        }
+
+        int separator = path.lastIndexOf('/');
+        String name = path.substring(separator + 1);
+        resolve(separator < 0 ? "" : path.substring(0, separator))
+                .thenComposeAsync(parent -> findOrCreate(parent, name, path), resolver)
+                .whenComplete((folder, e) -> {
+                    if (folder != null)
+                        metadataCache.putPath(path, folder.getId());
+                    // the cached path answers later callers, whoever comes in between resolves it again
+                    pending.remove(path, future);
+                    if (e == null)
+                        future.complete(folder);
+                    else
+                        future.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+                });
+        return future;
+    }
+
+    private CompletableFuture<Folder> findOrCreate(Folder parent, String name, String path) {
+        if (!parent.isCreated()) {
+            String existingId = lookup.find(name, path);
+            if (existingId != null)
+                return CompletableFuture.completedFuture(new Folder(existingId, false));
+        }
+
+        File metadata = new File()
+                .setName(name)
+                .setParents(Collections.singletonList(parent.getId()))
+                .setMimeType(DriveMetadataCache.FOLDER_MIME_TYPE);
+        try {
+            metadata.setId(nextReservedId());
+            return batchExecutor.submit(driveService.files().create(metadata).setFields(fileFields))
+                    .handle((created, e) -> {
+                        if (e != null && !isConflict(e))
+                            throw new CompletionException(e instanceof CompletionException ? e.getCause() : e);
+                        if (created == null)
+                            log.debug("Folder " + path + " was created by an earlier attempt");
+                        metadataCache.put(created != null ? created : metadata);
+                        syncMetrics.increment("drive.folders.created");
+                        return new Folder(metadata.getId(), true);
+                    });
+        } catch (IOException e) {
+            CompletableFuture<Folder> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private String nextReservedId() throws IOException {
+        synchronized (reservedIds) {
+            if (reservedIds.isEmpty()) {
+                GeneratedIds generated = requestExecutor.execute(driveService.files().generateIds()
+                        .setCount(RESERVED_IDS_BATCH)
+                        .setSpace("drive")
+                        .setFields("ids")::execute);
+                reservedIds.addAll(generated.getIds());
+                syncMetrics.add("drive.folders.ids.reserved", generated.getIds().size());
+            }
+            if (reservedIds.isEmpty())
+                throw new IOException("Drive reserved no IDs");
+            return reservedIds.poll();
+        }
+    }
+
+    /**
+     * @return whether the create failed because a folder of the reserved ID exists, left by an attempt whose
+     * response was lost
+     */
+    private static boolean isConflict(Throwable e) {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        return cause instanceof GoogleJsonResponseException
+                && ((GoogleJsonResponseException) cause).getStatusCode() == CONFLICT;
+    }
+
+    private static String normalize(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/')
+            start++;
+        while (end > start && path.charAt(end - 1) == '/')
+            end--;
+        return path.substring(start, end);
+    }
+}
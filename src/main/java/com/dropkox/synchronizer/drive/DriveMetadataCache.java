@@ -0,0 +1,207 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.services.drive.model.File;
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Bounded LRU of Drive file metadata (id, name, parents, modification time, trashed flag) with an index of
+ * already resolved paths and an index of content checksums. Entries are filled from file listings and refreshed
+ * from the changes feed, so path lookups don't have to walk the parent chain remotely.
+ */
+class DriveMetadataCache {
+
+    static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    private final int maxSize;
+    private final SyncMetrics syncMetrics;
+
+    private final Map<String, File> filesById;
+    private final Map<String, String> idsByPath;
+    private final Map<String, String> pathsById = new HashMap<>();
+    private final NavigableSet<String> sortedPaths = new TreeSet<>();
+    private final Map<String, Set<String>> idsByMd5 = new HashMap<>();
+
+    DriveMetadataCache(final int maxSize, @NonNull final SyncMetrics syncMetrics) {
+        this.maxSize = maxSize;
+        this.syncMetrics = syncMetrics;
+        this.filesById = new LinkedHashMap<String, File>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
+                if (size() > DriveMetadataCache.this.maxSize) {
+                    unindexMd5(eldest.getValue());
+                    // paths below an evicted folder could not be invalidated once it is renamed
+                    if (isFolder(eldest.getValue()))
+                        removeFolderPaths(eldest.getValue());
+                    else
+                        removePath(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.idsByPath = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > DriveMetadataCache.this.maxSize) {
+                    pathsById.remove(eldest.getValue());
+                    sortedPaths.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+        syncMetrics.gauge("drive.cache.size", this::size);
+    }
+
+    synchronized File get(@NonNull final String fileId) {
+        File file = filesById.get(fileId);
+        syncMetrics.increment(file != null ? "drive.cache.hit" : "drive.cache.miss");
+        return file;
+    }
+
+    /**
+     * Same as {@link #get(String)} without counting a cache hit or miss.
+     */
+    synchronized File peek(@NonNull final String fileId) {
+        return filesById.get(fileId);
+    }
+
+    synchronized boolean contains(@NonNull final String fileId) {
+        return filesById.containsKey(fileId);
+    }
+
+    synchronized void put(@NonNull final File file) {
+        File previous = filesById.put(file.getId(), file);
+        if (previous != null)
+            unindexMd5(previous);
+        indexMd5(file);
+        if (previous != null && isMoved(previous, file)) {
+            if (isFolder(previous))
+                removeFolderPaths(previous);
+            else
+                removePath(file.getId());
+        }
+    }
+
+    synchronized void evict(@NonNull final String fileId) {
+        File removed = filesById.remove(fileId);
+        if (removed != null)
+            unindexMd5(removed);
+        if (removed != null && isFolder(removed))
+            removeFolderPaths(removed);
+        else
+            removePath(fileId);
+    }
+
+    /**
+     * @return ID of the file previously resolved for the path or null when the path is unknown
+     */
+    synchronized String getId(@NonNull final String path) {
+        String fileId = idsByPath.get(path);
+        File file = fileId == null ? null : filesById.get(fileId);
+        if (file == null || Boolean.TRUE.equals(file.getTrashed())) {
+            syncMetrics.increment("drive.cache.path.miss");
+            return null;
+        }
+        syncMetrics.increment("drive.cache.path.hit");
+        return fileId;
+    }
+
+    /**
+     * @return ID of a cached, not trashed file with the given content or null when none is known
+     */
+    synchronized String getIdByMd5(@NonNull final String md5) {
+        Set<String> fileIds = idsByMd5.get(md5);
+        String fileId = fileIds == null ? null : fileIds.iterator().next();
+        syncMetrics.increment(fileId != null ? "drive.cache.md5.hit" : "drive.cache.md5.miss");
+        return fileId;
+    }
+
+    synchronized void putPath(@NonNull final String path, @NonNull final String fileId) {
+        removePath(fileId);
+        idsByPath.put(path, fileId);
+        pathsById.put(fileId, path);
+        sortedPaths.add(path);
+    }
+
+    synchronized int size() {
+        return filesById.size();
+    }
+
+    boolean isFull() {
+        return size() >= maxSize;
+    }
+
+    static boolean isFolder(File file) {
+        return FOLDER_MIME_TYPE.equals(file.getMimeType());
+    }
+
+    /**
+     * @return true when the file got a new name or parent
+     */
+    static boolean isRelocated(File previous, File current) {
+        return !Objects.equals(previous.getName(), current.getName())
+                || !Objects.equals(previous.getParents(), current.getParents());
+    }
+
+    private boolean isMoved(File previous, File current) {
+        return isRelocated(previous, current) || !Objects.equals(previous.getTrashed(), current.getTrashed());
+    }
+
+    private void indexMd5(File file) {
+        if (file.getMd5Checksum() != null && !Boolean.TRUE.equals(file.getTrashed()))
+            idsByMd5.computeIfAbsent(file.getMd5Checksum(), md5 -> new LinkedHashSet<>()).add(file.getId());
+    }
+
+    private void unindexMd5(File file) {
+        Set<String> fileIds = file.getMd5Checksum() == null ? null : idsByMd5.get(file.getMd5Checksum());
+        if (fileIds != null && fileIds.remove(file.getId()) && fileIds.isEmpty())
+            idsByMd5.remove(file.getMd5Checksum());
+    }
+
+    private void removePath(String fileId) {
+        String path = pathsById.remove(fileId);
+        if (path != null) {
+            idsByPath.remove(path);
+            sortedPaths.remove(path);
+        }
+    }
+
+    /**
+     * Drops the resolved paths of the folder and everything below it, all of them when the folder path is unknown.
+     */
+    private void removeFolderPaths(File folder) {
+        String path = folderPath(folder);
+        if (path == null) {
+            idsByPath.clear();
+            pathsById.clear();
+            sortedPaths.clear();
+            return;
+        }
+        // '0' follows '/', so the range holds exactly the paths below the folder
+        List<String> below = new ArrayList<>(sortedPaths.subSet(path + "/", path + "0"));
+        below.forEach(subPath -> pathsById.remove(idsByPath.remove(subPath)));
+        sortedPaths.removeAll(below);
+        removePath(folder.getId());
+    }
+
+    private String folderPath(File folder) {
+        String path = pathsById.get(folder.getId());
+        if (path != null || folder.getParents() == null || folder.getParents().isEmpty())
+            return path;
+        String parentPath = pathsById.get(folder.getParents().get(0));
+        return parentPath == null ? null : parentPath + "/" + folder.getName();
+    }
+}
@@ -0,0 +1,84 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives Drive push notifications of {@code changes().watch} channels on a small embedded HTTP server. A
+ * notification carries no change itself, it only triggers {@code onChange}, typically an early poll of the change
+ * feed. Requests of unknown channels or with a wrong token are refused.
+ */
+@Log4j
+class DriveNotificationReceiver {
+
+    static final String PATH = "/drive/notifications";
+
+    private static final String CHANNEL_ID_HEADER = "X-Goog-Channel-ID";
+    private static final String CHANNEL_TOKEN_HEADER = "X-Goog-Channel-Token";
+    private static final String RESOURCE_STATE_HEADER = "X-Goog-Resource-State";
+    private static final String SYNC_STATE = "sync";
+
+    private final String channelToken;
+    private final Runnable onChange;
+    private final SyncMetrics syncMetrics;
+    private final Set<String> channelIds = ConcurrentHashMap.newKeySet();
+    private final HttpServer server;
+
+    DriveNotificationReceiver(final int port, @NonNull final String channelToken, @NonNull final Runnable onChange,
+                              @NonNull final SyncMetrics syncMetrics) throws IOException {
+        this.channelToken = channelToken;
+        this.onChange = onChange;
+        this.syncMetrics = syncMetrics;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+    }
+
+    void start() {
+        server.start();
+        log.info("Receiving Drive notifications on port " + getPort());
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void acceptChannel(@NonNull final String channelId) {
+        channelIds.add(channelId);
+    }
+
+    void forgetChannel(@NonNull final String channelId) {
+        channelIds.remove(channelId);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String channelId = exchange.getRequestHeaders().getFirst(CHANNEL_ID_HEADER);
+            if (!"POST".equals(exchange.getRequestMethod()) || channelId == null || !channelIds.contains(channelId)
+                    || !channelToken.equals(exchange.getRequestHeaders().getFirst(CHANNEL_TOKEN_HEADER))) {
+                syncMetrics.increment("drive.push.refused");
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            // the first message of every channel only confirms it was created
+            if (!SYNC_STATE.equals(exchange.getRequestHeaders().getFirst(RESOURCE_STATE_HEADER))) {
+                syncMetrics.increment("drive.push.notifications");
+                onChange.run();
+            }
+            exchange.sendResponseHeaders(200, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+}
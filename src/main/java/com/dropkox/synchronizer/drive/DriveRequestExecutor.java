@@ -0,0 +1,172 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.concurrent.CircuitBreaker;
+import com.dropkox.core.concurrent.TokenBucket;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gate of all Drive API calls of the process. Every call takes a token from one bucket sized to the Drive quota,
+ * so concurrent callers share the budget instead of each running into the limit and backing off on its own.
+ * Calls failing on a rate limit, a server error or a dropped connection are retried with exponential backoff and
+ * full jitter. A run of such failures opens the circuit and calls fail fast until Drive had time to recover.
+ */
+@Log4j
+class DriveRequestExecutor {
+
+    private static final Set<Integer> RETRYABLE_STATUS_CODES = new HashSet<>(Arrays.asList(429, 500, 502, 503, 504));
+    private static final Set<String> RATE_LIMIT_REASONS = new HashSet<>(Arrays.asList("userRateLimitExceeded", "rateLimitExceeded"));
+    private static final int FORBIDDEN = 403;
+
+    @FunctionalInterface
+    interface Call<T> {
+        T execute() throws IOException;
+    }
+
+    private final TokenBucket tokenBucket;
+    private final CircuitBreaker circuitBreaker;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final SyncMetrics syncMetrics;
+
+    DriveRequestExecutor(@NonNull final TokenBucket tokenBucket, @NonNull final CircuitBreaker circuitBreaker,
+                         final int maxAttempts, final long baseDelayMillis, final long maxDelayMillis,
+                         @NonNull final SyncMetrics syncMetrics) {
+        this.tokenBucket = tokenBucket;
+        this.circuitBreaker = circuitBreaker;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.syncMetrics = syncMetrics;
+        syncMetrics.gauge("drive.circuit.open", () -> circuitBreaker.getState() == CircuitBreaker.State.OPEN ? 1 : 0);
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Executes the call, retrying it while it fails on a transient error.
+     */
+    <T> T execute(@NonNull final Call<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executeOnce(call, 1);
+            } catch (IOException e) {
+                if (!isRetryable(e) || attempt >= maxAttempts || circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+                    syncMetrics.increment("drive.requests.failed");
+                    throw e;
+                }
+                long delay = backoffMillis(attempt);
+                syncMetrics.increment("drive.requests.retried");
+                log.debug("Drive request failed (" + e.getMessage() + "), attempt " + attempt + ", retrying in " + delay + " ms");
+                sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Executes the call without retrying, for calls which are not safe to repeat as a whole, e.g. batches.
+     *
+     * @param permits number of Drive requests the call stands for
+     */
+    <T> T executeOnce(@NonNull final Call<T> call, final int permits) throws IOException {
+        throttle(permits);
+        if (!circuitBreaker.allowRequest()) {
+            syncMetrics.increment("drive.requests.short-circuited");
+            throw new IOException("Drive requests are suspended after repeated failures");
+        }
+        try {
+            T result = call.execute();
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (IOException e) {
+            recordOutcome(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the tokens of requests which are sent without this executor.
+     */
+    void throttle(final int permits) throws InterruptedIOException {
+        try {
+            long waitedNanos = tokenBucket.acquire(permits);
+            if (waitedNanos > 0) {
+                syncMetrics.increment("drive.requests.throttled");
+                syncMetrics.add("drive.requests.throttled.ms", TimeUnit.NANOSECONDS.toMillis(waitedNanos));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Drive quota");
+        }
+    }
+
+    /**
+     * Feeds the outcome of a request to the circuit breaker. Errors other than transient ones mean Drive answered.
+     */
+    void recordOutcome(final IOException failure) {
+        if (failure == null || !isRetryable(failure)) {
+            circuitBreaker.recordSuccess();
+        } else if (circuitBreaker.recordFailure()) {
+            syncMetrics.increment("drive.circuit.opened");
+            log.warn("Suspending Drive requests after repeated failures, last one: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the backoff delay of the attempt, for callers which repeat only a part of a failed call.
+     */
+    void backOff(final int attempt) throws InterruptedIOException {
+        syncMetrics.increment("drive.requests.retried");
+        sleep(backoffMillis(attempt));
+    }
+
+    /**
+     * @return random delay between zero and the exponentially growing cap
+     */
+    long backoffMillis(final int attempt) {
+        long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    static boolean isRetryable(@NonNull final IOException e) {
+        if (e instanceof HttpResponseException) {
+            int statusCode = ((HttpResponseException) e).getStatusCode();
+            if (RETRYABLE_STATUS_CODES.contains(statusCode))
+                return true;
+            return statusCode == FORBIDDEN && e instanceof GoogleJsonResponseException
+                    && isRateLimit(((GoogleJsonResponseException) e).getDetails());
+        }
+        return e instanceof SocketTimeoutException || e instanceof SocketException;
+    }
+
+    static boolean isRateLimit(final GoogleJsonError error) {
+        return error != null && error.getErrors() != null
+                && error.getErrors().stream().anyMatch(info -> RATE_LIMIT_REASONS.contains(info.getReason()));
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package com.dropkox.synchronizer.drive;
 
 
-import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.dropkox.core.concurrent.CircuitBreaker;
+import com.dropkox.core.concurrent.TokenBucket;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.synchronizer.TransferSource;
+import com.dropkox.synchronizer.state.SyncStateStore;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.json.GenericJson;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveRequest;
 import com.google.api.services.drive.model.Change;
 import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.Channel;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.StartPageToken;
@@ -15,55 +20,207 @@ import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Log4j
 @Service
 @RequiredArgsConstructor(onConstructor = @__(@Autowired))
 public class GoogleDriveService {
-    private static final String USER_RATE_LIMIT_EXCEEDED = "User Rate Limit Exceeded";
-    private static final int FORBIDDEN_CODE = 403;
+    private static final String FILE_FIELDS = "id, name, mimeType, parents, modifiedTime, trashed, size, md5Checksum";
+    private static final String CHANGES_FIELDS = "nextPageToken, newStartPageToken, changes(fileId, removed, time, file(" + FILE_FIELDS + "))";
+    private static final String CHANNEL_FIELDS = "id, resourceId, expiration";
+    private static final int LIST_PAGE_SIZE = 1000;
 
     @NonNull
     private Drive driveService;
+    @NonNull
+    private SyncMetrics syncMetrics;
+    @NonNull
+    private SyncStateStore syncStateStore;
 
+    @Value("${drive.cache.size:100000}")
+    private int cacheSize;
+    @Value("${drive.batch.linger-ms:20}")
+    private long batchLingerMillis;
+    @Value("${drive.upload.chunk-size:8388608}")
+    private int uploadChunkSize;
+    @Value("${drive.upload.resumable-threshold:8388608}")
+    private long resumableThreshold;
+    @Value("${drive.quota.requests-per-second:10}")
+    private double requestsPerSecond;
+    @Value("${drive.quota.burst:20}")
+    private int requestBurst;
+    @Value("${drive.retry.max-attempts:6}")
+    private int maxAttempts;
+    @Value("${drive.retry.base-delay-ms:500}")
+    private long retryBaseDelayMillis;
+    @Value("${drive.retry.max-delay-ms:32000}")
+    private long retryMaxDelayMillis;
+    @Value("${drive.circuit.failure-threshold:10}")
+    private int circuitFailureThreshold;
+    @Value("${drive.circuit.open-ms:30000}")
+    private long circuitOpenMillis;
+    @Value("${drive.folders.threads:4}")
+    private int folderThreads;
+    @Value("${app.state}")
+    private String stateDir;
+
+    private String rootId;
     private String rootName;
     private String savedStartPageToken;
+    private DriveMetadataCache metadataCache;
+    private DriveRequestExecutor requestExecutor;
+    private DriveBatchExecutor batchExecutor;
+    private ResumableUploader resumableUploader;
+    private DriveFolderCreator folderCreator;
 
     @PostConstruct
     private void init() {
+        metadataCache = new DriveMetadataCache(cacheSize, syncMetrics);
+        requestExecutor = new DriveRequestExecutor(new TokenBucket(requestsPerSecond, requestBurst),
+                new CircuitBreaker(circuitFailureThreshold, circuitOpenMillis),
+                maxAttempts, retryBaseDelayMillis, retryMaxDelayMillis, syncMetrics);
+        batchExecutor = new DriveBatchExecutor(driveService, requestExecutor, batchLingerMillis, syncMetrics);
+        resumableUploader = new ResumableUploader(driveService, requestExecutor,
+                new UploadSessionStore(Paths.get(stateDir, "upload-sessions.properties")), uploadChunkSize, syncMetrics);
+        folderCreator = new DriveFolderCreator(driveService, requestExecutor, batchExecutor, metadataCache, this::getId,
+                FILE_FIELDS, folderThreads, syncMetrics);
         try {
-            rootName = ((File) executeRequest(driveService.files().get("root").setFields("name"))).getName();
+            File root = (File) executeRequest(driveService.files().get("root").setFields("id, name"));
+            rootId = root.getId();
+            rootName = root.getName();
         } catch (IOException e) {
             log.warn(e.getMessage());
+            rootId = "root";
             rootName = "root";
         }
+        savedStartPageToken = syncStateStore.getChangeToken();
+        if (savedStartPageToken != null) {
+            log.debug("Resuming from persisted token: " + savedStartPageToken);
+            return;
+        }
         try {
             StartPageToken response = (StartPageToken) executeRequest(driveService.changes()
-                    .getStartPageToken());
+                    .getStartPageToken()
+                    .setFields("startPageToken"));
             log.debug("Start token: " + response.getStartPageToken());
             savedStartPageToken = response.getStartPageToken();
         } catch (IOException e) {
             log.warn(e.getMessage());
         }
+    }
 
+    @PreDestroy
+    private void cleanup() {
+        folderCreator.shutdown();
+        batchExecutor.shutdown();
     }
 
+    /**
+     * Lists every file under the root folder in pages and resolves their paths from the listed parents in memory.
+     * Listed metadata also warms up the cache while it has room.
+     *
+     * @param listed incremented with the number of files of every listed page
+     * @return files keyed by path or null when the listing failed
+     */
+    Map<String, File> listFilesByPath(@NonNull final AtomicLong listed) {
+        Map<String, File> filesById = new HashMap<>();
+        String pageToken = null;
+        do {
+            FileList page;
+            try {
+                page = (FileList) executeRequest(driveService.files().list()
+                        .setQ("trashed = false")
+                        .setPageSize(LIST_PAGE_SIZE)
+                        .setPageToken(pageToken)
+                        .setFields("nextPageToken, files(" + FILE_FIELDS + ")"));
+            } catch (IOException e) {
+                log.warn(e.getMessage());
+                return null;
+            }
+            for (File file : page.getFiles()) {
+                filesById.put(file.getId(), file);
+                if (!metadataCache.isFull())
+                    metadataCache.put(file);
+            }
+            listed.addAndGet(page.getFiles().size());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        log.debug("Metadata cache warmed up with " + metadataCache.size() + " files");
+
+        Map<String, String> pathsById = new HashMap<>();
+        Map<String, File> filesByPath = new HashMap<>();
+        for (File file : filesById.values()) {
+            String path = resolvePath(file, filesById, pathsById);
+            if (path != null)
+                filesByPath.put(path, file);
+        }
+        return filesByPath;
+    }
+
+    private String resolvePath(File file, Map<String, File> filesById, Map<String, String> pathsById) {
+        if (pathsById.containsKey(file.getId()))
+            return pathsById.get(file.getId());
+        String path = null;
+        if (file.getParents() != null && !file.getParents().isEmpty()) {
+            String parentId = file.getParents().get(0);
+            File parent = filesById.get(parentId);
+            if (parentId.equals(rootId)) {
+                path = file.getName();
+            } else if (parent != null) {
+                String parentPath = resolvePath(parent, filesById, pathsById);
+                path = parentPath == null ? null : parentPath + "/" + file.getName();
+            }
+        }
+        pathsById.put(file.getId(), path);
+        return path;
+    }
+
+    /**
+     * @return token from which the next {@link #getChanges()} call continues
+     */
+    String getStartPageToken() {
+        return savedStartPageToken;
+    }
+
+    /**
+     * Reads all changes since the saved token, following the pages of the feed. The saved token moves on only once
+     * the last page was read.
+     *
+     * @return changes or null when reading failed
+     */
     List<Change> getChanges() {
         String pageToken = savedStartPageToken;
         List<Change> resultChanges = new ArrayList<>();
         while (pageToken != null) {
             ChangeList changes;
             try {
-                changes = (ChangeList) executeRequest(driveService.changes().list(savedStartPageToken));
+                changes = (ChangeList) executeRequest(driveService.changes().list(pageToken)
+                        .setPageSize(LIST_PAGE_SIZE)
+                        .setFields(CHANGES_FIELDS));
             } catch (IOException e) {
                 log.warn(e.getMessage());
                 return null;
@@ -80,28 +237,80 @@ public class GoogleDriveService {
     }
 
 
-    synchronized Instant getModificationDate(@NonNull final String fileId) {
-        File currentFile;
+    /**
+     * Subscribes the address to push notifications about changes after the saved token.
+     *
+     * @return the created channel or null when the subscription failed
+     */
+    Channel watchChanges(@NonNull final String address, @NonNull final String channelId, @NonNull final String channelToken) {
         try {
-            currentFile = (File) executeRequest(driveService.files().get(fileId).setFields("modifiedTime"));
+            return (Channel) executeRequest(driveService.changes().watch(savedStartPageToken, new Channel()
+                    .setId(channelId)
+                    .setType("web_hook")
+                    .setAddress(address)
+                    .setToken(channelToken))
+                    .setFields(CHANNEL_FIELDS));
         } catch (IOException e) {
-            log.warn(e.getMessage());
+            log.warn("Cannot watch changes: " + e.getMessage());
+            return null;
+        }
+    }
+
+    void stopWatching(@NonNull final Channel channel) {
+        try {
+            executeRequest(driveService.channels().stop(channel));
+        } catch (IOException e) {
+            log.warn("Cannot stop channel " + channel.getId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Refreshes cached metadata with the file state carried by the change.
+     *
+     * @return path the file had before the change when the change moved or renamed a known file, otherwise null
+     */
+    String applyChange(@NonNull final Change change) {
+        if (Boolean.TRUE.equals(change.getRemoved()) || change.getFile() == null) {
+            metadataCache.evict(change.getFileId());
             return null;
         }
+        File previous = metadataCache.peek(change.getFileId());
+        String previousPath = null;
+        if (previous != null && !Boolean.TRUE.equals(previous.getTrashed()) && !Boolean.TRUE.equals(change.getFile().getTrashed())
+                && DriveMetadataCache.isRelocated(previous, change.getFile()))
+            // resolved while the cache still holds the old name and parents
+            previousPath = getFilePath(previous.getId(), previous.getName());
+        metadataCache.put(change.getFile());
+        return previousPath;
+    }
+
+    Instant getModificationDate(@NonNull final String fileId) {
+        File currentFile = getMetadata(fileId);
+        if (currentFile == null)
+            return null;
         return Instant.ofEpochMilli(currentFile.getModifiedTime().getValue());
     }
 
 
-    synchronized String getId(@NonNull final String name, @NonNull final String path) {
+    String getId(@NonNull final String name, @NonNull final String path) {
+        String cachedId = metadataCache.getId(path);
+        if (cachedId != null)
+            return cachedId;
+
         try {
             FileList result = (FileList) executeRequest(driveService.files().list()
-                    .setQ(String.format("trashed = false and name='%s'", name)));
+                    .setQ(String.format("trashed = false and name='%s'", name))
+                    .setFields("files(" + FILE_FIELDS + ")"));
+            result.getFiles().forEach(metadataCache::put);
 
-            return result.getFiles().stream()
+            String fileId = result.getFiles().stream()
                     .map(File::getId)
-                    .filter(id -> getFilePath(id, name).equals(path))
+                    .filter(id -> path.equals(getFilePath(id, name)))
                     .findAny()
                     .orElse(null);
+            if (fileId != null)
+                metadataCache.putPath(path, fileId);
+            return fileId;
         } catch (IOException e) {
             log.warn(e);
             return null;
@@ -109,54 +318,200 @@ public class GoogleDriveService {
     }
 
 
-    synchronized String getFilePath(@NonNull final String startFileId, @NonNull final String fileName) {
+    String getFilePath(@NonNull final String startFileId, @NonNull final String fileName) {
         StringBuilder stringBuilder = new StringBuilder(fileName);
+        File file = getMetadata(startFileId);
+        while (file != null && file.getParents() != null) {
+            String parentId = file.getParents().get(0); // PoC
+            file = getMetadata(parentId);
+            if (file != null && !file.getName().equals(rootName))
+                stringBuilder.insert(0, file.getName() + "/");
+        }
+        return file == null ? null : stringBuilder.toString();
+    }
+
+    Boolean isTrashed(@NonNull final String fileId) {
+        File file = getMetadata(fileId);
+        return file == null || Boolean.TRUE.equals(file.getTrashed());
+    }
+
+    /**
+     * Loads metadata of all not yet cached ancestors of the given files. Every level of the hierarchy
+     * costs one batch round trip instead of one request per folder.
+     */
+    void prefetchAncestors(@NonNull final Collection<File> files) {
+        Set<String> missing = parentIdsOf(files.stream());
+        while (!missing.isEmpty()) {
+            List<File> fetched = missing.stream()
+                    .map(this::getMetadataAsync)
+                    .collect(Collectors.toList()).stream()
+                    .map(future -> await(future, "prefetch"))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+            missing = parentIdsOf(fetched.stream());
+        }
+    }
+
+    private Set<String> parentIdsOf(Stream<File> files) {
+        return files.filter(file -> file.getParents() != null)
+                .map(file -> file.getParents().get(0))
+                .filter(parentId -> !metadataCache.contains(parentId))
+                .collect(Collectors.toSet());
+    }
+
+    private File getMetadata(String fileId) {
+        return await(getMetadataAsync(fileId), "get " + fileId);
+    }
+
+    CompletableFuture<File> getMetadataAsync(@NonNull final String fileId) {
+        File file = metadataCache.get(fileId);
+        if (file != null)
+            return CompletableFuture.completedFuture(file);
         try {
-            File file = (File) executeRequest(driveService.files().get(startFileId).setFields("id, parents, name"));
+            return batchExecutor.submit(driveService.files().get(fileId).setFields(FILE_FIELDS))
+                    .thenApply(fetched -> {
+                        metadataCache.put(fetched);
+                        return fetched;
+                    });
+        } catch (IOException e) {
+            return failed(e);
+        }
+    }
 
-            while (file.getParents() != null) {
-                String parentId = file.getParents().get(0); // PoC
-                file = (File) executeRequest(driveService.files().get(parentId).setFields("id, parents, name"));
-                if (!file.getName().equals(rootName))
-                    stringBuilder.insert(0, file.getName() + "/");
-            }
+    void delete(@NonNull final String fileId) {
+        await(deleteAsync(fileId), "delete " + fileId);
+    }
 
-            return stringBuilder.toString();
+    /**
+     * Moves the file to the Drive trash, from where it can still be restored.
+     *
+     * @return whether the file was trashed
+     */
+    boolean trash(@NonNull final String fileId) {
+        try {
+            executeRequest(driveService.files().update(fileId, new File().setTrashed(true)).setFields("id"));
+            metadataCache.evict(fileId);
+            return true;
         } catch (IOException e) {
-            log.warn(e);
-            return null;
+            log.warn("Cannot trash " + fileId + ": " + e.getMessage());
+            return false;
         }
     }
 
-    synchronized Boolean isTrashed(@NonNull final String fileId) {
+    CompletableFuture<Void> deleteAsync(@NonNull final String fileId) {
         try {
-            File file = (File) executeRequest(driveService.files().get(fileId).setFields("trashed"));
-            return file.getTrashed();
+            return batchExecutor.submit(driveService.files().delete(fileId))
+                    .thenRun(() -> metadataCache.evict(fileId));
         } catch (IOException e) {
-            log.warn(e);
-            return true;
+            return failed(e);
         }
     }
 
-    synchronized void delete(@NonNull final String fileId) {
+    /**
+     * Renames the file and moves it under the new parent with a single metadata update. A moved folder takes its
+     * whole subtree along, nothing is sent again.
+     *
+     * @return moved file or null when the move failed
+     */
+    File move(@NonNull final String fileId, @NonNull final String name, @NonNull final String parentId) {
+        File current = getMetadata(fileId);
+        if (current == null)
+            return null;
+        List<String> previousParents = current.getParents() == null ? Collections.emptyList() : current.getParents();
         try {
-            executeRequest(driveService.files().delete(fileId));
+            Drive.Files.Update request = driveService.files().update(fileId, new File().setName(name)).setFields(FILE_FIELDS);
+            if (!previousParents.contains(parentId)) {
+                request.setAddParents(parentId);
+                if (!previousParents.isEmpty())
+                    request.setRemoveParents(String.join(",", previousParents));
+            }
+            File moved = (File) executeRequest(request);
+            metadataCache.put(moved);
+            return moved;
         } catch (IOException e) {
-            log.warn(e.getMessage());
+            log.warn("Cannot move " + fileId + ": " + e.getMessage());
+            return null;
         }
     }
 
-    synchronized void createFile(@NonNull final String name, @NonNull final String parentId, @NonNull final InputStream inputStream) {
+    /**
+     * @return ID of a known Drive file with the given content or null when none is known
+     */
+    String findByMd5(@NonNull final String md5) {
+        return metadataCache.getIdByMd5(md5);
+    }
+
+    /**
+     * Copies the file on the Drive side, no content is sent.
+     *
+     * @return the copy or null when copying failed
+     */
+    File copyFile(@NonNull final String sourceId, @NonNull final String name, @NonNull final String parentId) {
+        File fileMetadata = new File();
+        fileMetadata.setName(name);
+        fileMetadata.setParents(Collections.singletonList(parentId));
+        try {
+            File copied = (File) executeRequest(driveService.files().copy(sourceId, fileMetadata).setFields(FILE_FIELDS));
+            metadataCache.put(copied);
+            return copied;
+        } catch (IOException e) {
+            log.warn("Cannot copy " + sourceId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    String getMd5Checksum(@NonNull final String fileId) {
+        File file = getMetadata(fileId);
+        return file == null ? null : file.getMd5Checksum();
+    }
+
+    /**
+     * Uploads a new file. Content of known size above the resumable threshold is sent in chunks through
+     * a persisted resumable session, everything else in a single request which is not retried.
+     *
+     * @param size      content length or null when unknown
+     * @param resumeKey key of the exact content version, used to resume an interrupted upload
+     * @return metadata of the uploaded file
+     * @throws UncheckedIOException when the upload failed, so the operation stays pending
+     */
+    File createFile(@NonNull final String name, @NonNull final String parentId, @NonNull final InputStream inputStream,
+                    final Long size, @NonNull final String resumeKey) {
         File fileMetadata = new File();
         fileMetadata.setParents(Collections.singletonList(parentId));
         fileMetadata.setName(name);
-        String fileType = getFileType(name);
-        InputStreamContent inputStreamContent = new InputStreamContent(fileType, inputStream);
+        return upload(null, fileMetadata, getFileType(name), inputStream, size, resumeKey);
+    }
+
+    /**
+     * Replaces content of an existing file, keeping its ID, revision history and shares.
+     */
+    File updateFile(@NonNull final String fileId, @NonNull final String name, @NonNull final InputStream inputStream,
+                    final Long size, @NonNull final String resumeKey) {
+        return upload(fileId, new File(), getFileType(name), inputStream, size, resumeKey);
+    }
 
+    private File upload(String fileId, File fileMetadata, String fileType, InputStream inputStream, Long size, String resumeKey) {
         try {
-            executeRequest(driveService.files().create(fileMetadata, inputStreamContent));
+            File uploaded;
+            if (size != null && size >= resumableThreshold) {
+                uploaded = resumableUploader.upload(fileId, fileMetadata, fileType, inputStream, size, resumeKey, FILE_FIELDS);
+            } else {
+                InputStreamContent inputStreamContent = new InputStreamContent(fileType, inputStream);
+                if (size != null)
+                    inputStreamContent.setLength(size);
+                DriveRequest<File> request = fileId == null
+                        ? driveService.files().create(fileMetadata, inputStreamContent)
+                        : driveService.files().update(fileId, fileMetadata, inputStreamContent);
+                // the stream is consumed by the first attempt and a repeated create would leave a second file,
+                // a failed upload is sent again when its pending operation is replayed
+                uploaded = requestExecutor.executeOnce(request.setFields(FILE_FIELDS)::execute, 1);
+                if (size != null)
+                    syncMetrics.add("drive.upload.bytes", size);
+            }
+            metadataCache.put(uploaded);
+            return uploaded;
         } catch (IOException e) {
-            log.warn(e);
+            throw new UncheckedIOException("Upload of " + (fileId != null ? fileId : fileMetadata.getName()) + " failed", e);
         }
     }
 
@@ -170,22 +525,45 @@ public class GoogleDriveService {
         return "text/plain";
     }
 
-    synchronized String createDirectory(@NonNull final String parentId, @NonNull final String fileName) {
-        File fileMetadata = new File();
-        fileMetadata.setName(fileName);
-        fileMetadata.setParents(Collections.singletonList(parentId));
-        fileMetadata.setMimeType("application/vnd.google-apps.folder");
-        try {
-            return ((File) executeRequest(driveService.files().create(fileMetadata).setFields("id"))).getId();
-        } catch (IOException e) {
-            log.warn(e.getMessage());
+    /**
+     * @return ID of the folder at the path, created together with its missing ancestors, or null when that failed
+     */
+    String ensureFolder(@NonNull final String path) {
+        return await(folderCreator.folderId(path), "create folder " + path);
+    }
+
+    /**
+     * Makes sure all folders of a tree exist. Missing ones are created concurrently, level by level, see
+     * {@link DriveFolderCreator}.
+     *
+     * @return number of folders which could not be created
+     */
+    int ensureFolders(@NonNull final Collection<String> paths) {
+        return (int) paths.stream()
+                .map(path -> folderCreator.folderId(path))
+                .collect(Collectors.toList()).stream()
+                .filter(future -> await(future, "create folder") == null)
+                .count();
+    }
+
+    /**
+     * Opens content of the file together with its size and checksum from the metadata cache.
+     */
+    TransferSource openTransfer(@NonNull final String fileId) {
+        File metadata = getMetadata(fileId);
+        InputStream content = getInputStream(fileId);
+        if (content == null)
             return null;
-        }
+        return TransferSource.builder()
+                .channel(Channels.newChannel(content))
+                .contentLength(metadata == null ? null : metadata.getSize())
+                .md5(metadata == null ? null : metadata.getMd5Checksum())
+                .build();
     }
 
     InputStream getInputStream(@NonNull final String fileId) {
         try {
-            return driveService.files().get(fileId).executeMediaAsInputStream();
+            return requestExecutor.execute(driveService.files().get(fileId)::executeMediaAsInputStream);
         } catch (IOException e) {
             log.warn(e.getMessage());
             return null;
@@ -193,24 +571,23 @@ public class GoogleDriveService {
     }
 
 
-    private GenericJson executeRequest(DriveRequest driveRequest) throws IOException {
-        return executeRequestExpBackoff(driveRequest, 0);
-    }
-
-    private GenericJson executeRequestExpBackoff(DriveRequest driveRequest, double delayS) throws IOException {
+    private <T> T await(CompletableFuture<T> future, String description) {
         try {
-            return (GenericJson) driveRequest.execute();
-        } catch (GoogleJsonResponseException e) {
-            if (e.getDetails().getMessage().equals(USER_RATE_LIMIT_EXCEEDED) && e.getDetails().getCode() == FORBIDDEN_CODE) {
-                try {
-                    Thread.sleep((long) (1000 * delayS));
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
-                return executeRequestExpBackoff(driveRequest, Math.pow(2, delayS + 1));
-            }
-            throw e;
+            return future.join();
+        } catch (CompletionException e) {
+            log.warn(description + " failed: " + e.getCause().getMessage());
+            return null;
         }
     }
 
+    private static <T> CompletableFuture<T> failed(IOException e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private GenericJson executeRequest(DriveRequest driveRequest) throws IOException {
+        return (GenericJson) requestExecutor.execute(driveRequest::execute);
+    }
+
 }
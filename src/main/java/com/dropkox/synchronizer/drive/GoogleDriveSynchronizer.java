@@ -1,12 +1,20 @@
 package com.dropkox.synchronizer.drive;
 
+import com.dropkox.core.concurrent.BackpressurePolicy;
+import com.dropkox.core.hash.DigestingChannel;
+import com.dropkox.core.metrics.SyncMetrics;
 import com.dropkox.model.EventType;
 import com.dropkox.model.FileEvent;
 import com.dropkox.model.FileType;
 import com.dropkox.model.KoxFile;
 import com.dropkox.synchronizer.ISynchronizer;
 import com.dropkox.synchronizer.SynchronizationService;
+import com.dropkox.synchronizer.TransferSource;
+import com.dropkox.synchronizer.state.SyncRecord;
+import com.dropkox.synchronizer.state.SyncStateStore;
+import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.Channel;
 import com.google.api.services.drive.model.File;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -14,17 +22,32 @@ import lombok.ToString;
 import lombok.extern.log4j.Log4j;
 import net.jodah.expiringmap.ExpiringMap;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static com.dropkox.model.FileType.DIR;
@@ -39,28 +62,56 @@ import static javaslang.Predicates.isIn;
 @Log4j
 @Component
 @RequiredArgsConstructor(onConstructor = @__(@Autowired))
-@ToString(exclude = {"synchronizationService", "driveService"})
+@ToString(exclude = {"synchronizationService", "driveService", "syncMetrics", "syncStateStore", "pollingSchedule",
+        "notificationReceiver", "channelRenewal", "channel"})
 public class GoogleDriveSynchronizer implements ISynchronizer {
 
+    private static final long CHANNEL_RENEW_AHEAD_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long CHANNEL_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long DEFAULT_CHANNEL_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
     @NonNull
     private SynchronizationService synchronizationService;
     @NonNull
     private GoogleDriveService driveService;
+    @NonNull
+    private SyncMetrics syncMetrics;
+    @NonNull
+    private SyncStateStore syncStateStore;
+
+    @Value("${drive.workers:4}")
+    private int workersCount;
+    @Value("${drive.changes.min-interval-ms:1000}")
+    private long minPollIntervalMillis;
+    @Value("${drive.changes.max-interval-ms:60000}")
+    private long maxPollIntervalMillis;
+    @Value("${drive.push.address:}")
+    private String pushAddress;
+    @Value("${drive.push.port:8090}")
+    private int pushPort;
+    @Value("${drive.folders.bulk-limit:10000}")
+    private int folderBulkLimit;
+
+    private ChangePollingSchedule pollingSchedule;
+    private DriveNotificationReceiver notificationReceiver;
+    private ScheduledExecutorService channelRenewal;
+    private volatile Channel channel;
 
     private final Map<String, Object> recentUpdates = ExpiringMap.builder().expiration(5, TimeUnit.SECONDS).build();
 
     @Override
-    public synchronized void process(@NonNull final FileEvent fileEvent) {
+    public void process(@NonNull final FileEvent fileEvent) {
         recentUpdates.put(fileEvent.getKoxFile().getPath(), new Object());
 
         KoxFile koxFile = fileEvent.getKoxFile();
-        if (!isFileNeededToUpdate(koxFile)) {
+        if (fileEvent.getEventType() != EventType.MOVE && !isFileNeededToUpdate(koxFile)) {
             log.warn("Ignoring change: " + fileEvent);
             return;
         }
         Match(fileEvent.getEventType()).of(
                 Case($(isIn(EventType.CREATE, EventType.MODIFY)), o -> run(() -> fileModified(fileEvent.getKoxFile()))),
                 Case(is(EventType.DELETE), o -> run(() -> fileDeleted(fileEvent.getKoxFile()))),
+                Case(is(EventType.MOVE), o -> run(() -> fileMoved(fileEvent.getKoxFile()))),
                 Case($(), o -> run(() -> {
                     throw new UnsupportedOperationException("Event type not supported yet! " + fileEvent.getEventType());
                 }))
@@ -73,51 +124,172 @@ public class GoogleDriveSynchronizer implements ISynchronizer {
         return driveService.getInputStream(koxFile.getId());
     }
 
+    @Override
+    public TransferSource openTransfer(@NonNull final KoxFile koxFile) {
+        return driveService.openTransfer(koxFile.getId());
+    }
+
+    @Override
+    public String getChecksum(@NonNull final KoxFile koxFile) {
+        return driveService.getMd5Checksum(koxFile.getId());
+    }
+
+    /**
+     * Lists the whole Drive tree.
+     *
+     * @return every remote file and folder keyed by its path or null when the listing failed
+     */
+    public Map<String, KoxFile> listRemoteFiles() {
+        AtomicLong listed = new AtomicLong();
+        syncMetrics.gauge("reconcile.remote.listed", listed::get);
+        Map<String, File> files = driveService.listFilesByPath(listed);
+        if (files == null)
+            return null;
+        Map<String, KoxFile> koxFiles = new HashMap<>();
+        files.forEach((path, file) -> koxFiles.put(path, KoxFile.builder()
+                .source(this)
+                .id(file.getId())
+                .fileType(resolveFileType(file.getMimeType()))
+                .modificationDate(file.getModifiedTime() == null ? null : new Date(file.getModifiedTime().getValue()))
+                .size(file.getSize())
+                .checksum(file.getMd5Checksum())
+                .name(file.getName())
+                .path(path)
+                .build()));
+        return koxFiles;
+    }
+
     @PostConstruct
     public void start() {
-        synchronizationService.register(this);
+        pollingSchedule = new ChangePollingSchedule(minPollIntervalMillis, maxPollIntervalMillis);
+        syncMetrics.gauge("drive.changes.interval.ms", pollingSchedule::getIntervalMillis);
+        synchronizationService.register(this, workersCount);
+    }
 
+    @PreDestroy
+    public void stop() {
+        if (channelRenewal != null)
+            channelRenewal.shutdownNow();
+        if (channel != null)
+            driveService.stopWatching(channel);
+        if (notificationReceiver != null)
+            notificationReceiver.stop();
     }
 
+    /**
+     * Polls the change feed again right after changes were found and backs off while Drive stays idle or unreachable.
+     * With push notifications configured, a notification triggers the next poll early.
+     */
     @Async
     public void startListening() {
-        List<Change> changes;
-        while ((changes = driveService.getChanges()) != null) {
-            for (Change change : changes) {
-                processChange(change);
+        startPushNotifications();
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Change> changes = driveService.getChanges();
+            syncMetrics.increment("drive.changes.polls");
+            if (changes == null) {
+                syncMetrics.increment("drive.changes.poll.failures");
+            } else {
+                driveService.prefetchAncestors(changes.stream()
+                        .map(Change::getFile)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toList()));
+                changes.forEach(this::processChange);
+                if (driveService.getStartPageToken() != null)
+                    syncStateStore.setChangeToken(driveService.getStartPageToken());
             }
-            log.trace("PING");
+            pollingSchedule.pollFinished(changes != null && !changes.isEmpty());
             try {
-                Thread.sleep(1000);
+                if (pollingSchedule.awaitNextPoll())
+                    syncMetrics.increment("drive.changes.early.polls");
             } catch (InterruptedException e) {
-                log.warn(e);
+                Thread.currentThread().interrupt();
             }
         }
     }
 
-    @Async
+    private void startPushNotifications() {
+        if (pushAddress.isEmpty())
+            return;
+        String channelToken = UUID.randomUUID().toString();
+        try {
+            notificationReceiver = new DriveNotificationReceiver(pushPort, channelToken, pollingSchedule::wakeUp, syncMetrics);
+        } catch (IOException e) {
+            log.warn("Cannot receive Drive notifications, polling only: " + e.getMessage());
+            return;
+        }
+        notificationReceiver.start();
+        channelRenewal = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "drive-channel-renewal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewChannel(channelToken);
+    }
+
+    /**
+     * Opens a new notification channel and closes the previous one, then plans the next renewal shortly before
+     * the new channel expires.
+     */
+    private void renewChannel(String channelToken) {
+        String channelId = UUID.randomUUID().toString();
+        notificationReceiver.acceptChannel(channelId);
+        Channel renewed = driveService.watchChanges(pushAddress + DriveNotificationReceiver.PATH, channelId, channelToken);
+        if (renewed == null) {
+            notificationReceiver.forgetChannel(channelId);
+            channelRenewal.schedule(() -> renewChannel(channelToken), CHANNEL_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        Channel previous = channel;
+        channel = renewed;
+        if (previous != null) {
+            driveService.stopWatching(previous);
+            notificationReceiver.forgetChannel(previous.getId());
+        }
+        long expiresIn = renewed.getExpiration() == null ? DEFAULT_CHANNEL_TTL_MILLIS : renewed.getExpiration() - System.currentTimeMillis();
+        channelRenewal.schedule(() -> renewChannel(channelToken), Math.max(CHANNEL_RETRY_MILLIS, expiresIn - CHANNEL_RENEW_AHEAD_MILLIS),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands the change over to the synchronization service. The change is journaled when this method returns,
+     * so the token read together with it can be persisted right after. A full dispatch queue blocks polling.
+     */
     private void processChange(Change change) {
+        String previousPath = driveService.applyChange(change);
         if (change.getFile() != null) {
             String filePath = getFilePath(change.getFile());
-            if (recentUpdates.containsKey(filePath)) {
+            if (filePath == null) {
+                log.warn("Cannot resolve path of " + change.getFileId());
+                return;
+            }
+            if (recentUpdates.containsKey(filePath) || (previousPath != null && recentUpdates.containsKey(previousPath))) {
                 log.debug("Skipping recent update");
                 return;
             }
-            log.info("Change found for file: " + change.getFile().getName());
+            EventType eventType = resolveEventType(change);
+            if (eventType == EventType.MODIFY && previousPath != null && !previousPath.equals(filePath)) {
+                log.info(String.format("Move found for file: %s -> %s", previousPath, filePath));
+                eventType = EventType.MOVE;
+            } else {
+                previousPath = null;
+                log.info("Change found for file: " + change.getFile().getName());
+            }
             FileEvent fileEvent = FileEvent.builder()
                     .koxFile(KoxFile.builder()
                             .source(this)
                             .id(change.getFileId())
                             .fileType(resolveFileType(change.getFile().getMimeType()))
                             .modificationDate(new Date(change.getTime().getValue()))
+                            .size(change.getFile().getSize())
                             .name(change.getFile().getName())
                             .path(filePath)
+                            .previousPath(previousPath)
                             .build())
-                    .eventType(resolveEventType(change))
+                    .eventType(eventType)
                     .timestamp(change.getTime().getValue())
                     .build();
 
-            synchronizationService.accept(fileEvent);
+            synchronizationService.accept(fileEvent, BackpressurePolicy.BLOCK);
         } else log.warn(String.format("File with ID: %s do not exists!", change.getFileId()));
     }
 
@@ -145,6 +317,7 @@ public class GoogleDriveSynchronizer implements ISynchronizer {
             driveService.delete(fileId);
         else
             log.warn("File do not exists " + koxFile);
+        syncStateStore.removeRecord(koxFile.getPath());
     }
 
     private void fileModified(KoxFile koxFile) {
@@ -159,28 +332,195 @@ public class GoogleDriveSynchronizer implements ISynchronizer {
         log.info("Sending file: " + koxFile.getName());
         String actualId = driveService.getId(koxFile.getName(), koxFile.getPath());
         if (actualId != null) {
-            log.debug("Updating file: " + koxFile.getName());
-            driveService.delete(actualId);
-        }
-
-        InputStream inputStream = koxFile.getSource().getInputStream(koxFile);
-        String filePath = koxFile.getPath();
-        String[] filePathSplited = filePath.split("/");
-        String parentId = "root";
-        if (filePathSplited.length > 1) {
-            String parentName = filePathSplited[filePathSplited.length - 2]; //
-            String parentPath = filePath.substring(0, filePath.lastIndexOf('/'));
-            String currentParentId = driveService.getId(parentName, parentPath);
-            if (currentParentId == null) {
-                parentId = createDirectoryRecursive(parentPath);
-            } else {
-                parentId = currentParentId;
+            updateRegularFile(koxFile, actualId);
+            return;
+        }
+
+        String parentId = resolveParentId(koxFile.getPath());
+        if (parentId == null) {
+            log.warn("Cannot create parent folder of " + koxFile.getPath());
+            return;
+        }
+        File copied = copyExisting(koxFile, parentId);
+        if (copied != null) {
+            recordSynced(koxFile, copied);
+            return;
+        }
+
+        try (TransferSource transfer = koxFile.getSource().openTransfer(koxFile)) {
+            if (transfer == null) {
+                log.warn("Cannot open content of " + koxFile.getPath());
+                return;
             }
+            DigestingChannel content = new DigestingChannel(transfer.getChannel());
+            File uploaded = driveService.createFile(koxFile.getName(), parentId, Channels.newInputStream(content),
+                    transfer.getContentLength(), resumeKeyOf(koxFile));
+            recordSynced(koxFile, verified(koxFile, transfer, content, uploaded));
+        } catch (IOException e) {
+            log.warn(e);
         }
+    }
+
+    /**
+     * Copies a Drive file with the same content into place instead of uploading the content again.
+     *
+     * @return the copy or null when Drive holds no file with the same content
+     */
+    private File copyExisting(KoxFile koxFile, String parentId) {
+        String md5 = koxFile.getSource().getChecksum(koxFile);
+        String sourceId = md5 == null ? null : driveService.findByMd5(md5);
+        if (sourceId == null)
+            return null;
+
+        File copied = driveService.copyFile(sourceId, koxFile.getName(), parentId);
+        if (copied == null)
+            return null;
+        if (!md5.equals(copied.getMd5Checksum())) {
+            log.warn("Copy of " + sourceId + " does not have content of " + koxFile.getPath() + ", uploading instead");
+            driveService.delete(copied.getId());
+            return null;
+        }
+        log.debug("Copied " + sourceId + " to " + koxFile.getPath() + " instead of uploading");
+        syncMetrics.increment("drive.upload.copies");
+        if (koxFile.getSize() != null)
+            syncMetrics.add("drive.upload.bytes.avoided", koxFile.getSize());
+        return copied;
+    }
 
-        driveService.createFile(koxFile.getName(), parentId, inputStream);
+    /**
+     * @return ID of the parent folder of the path, created when it does not exist yet, or null when that failed
+     */
+    private String resolveParentId(String filePath) {
+        int separator = filePath.lastIndexOf('/');
+        return separator < 0 ? DriveFolderCreator.ROOT_ID : driveService.ensureFolder(filePath.substring(0, separator));
     }
 
+    /**
+     * Applies a local move or rename as one metadata update of the Drive file. A file moved over an existing one
+     * becomes its new content, a folder moved over an existing one sends that one to the trash.
+     */
+    private void fileMoved(KoxFile koxFile) {
+        String previousPath = koxFile.getPreviousPath();
+        String fileId = previousPath == null ? null : driveService.getId(previousPath.substring(previousPath.lastIndexOf('/') + 1), previousPath);
+        if (fileId == null) {
+            log.warn("Moved file not found in Drive, sending it instead: " + koxFile);
+            fileModified(koxFile);
+            if (koxFile.getFileType() == DIR)
+                koxFile.getSource().importSubtree(koxFile);
+            return;
+        }
+        recentUpdates.put(previousPath, new Object());
+
+        String targetId = driveService.getId(koxFile.getName(), koxFile.getPath());
+        if (targetId != null && !targetId.equals(fileId)) {
+            if (koxFile.getFileType() == REGULAR_FILE) {
+                log.info("Moved " + previousPath + " over " + koxFile.getPath() + ", updating the existing file");
+                if (updateRegularFile(koxFile, targetId) != null) {
+                    driveService.delete(fileId);
+                    syncStateStore.removeRecord(previousPath);
+                }
+                return;
+            }
+            if (!driveService.trash(targetId)) {
+                log.warn("Cannot move " + previousPath + " over existing " + koxFile.getPath());
+                return;
+            }
+        }
+
+        log.info("Moving " + previousPath + " to " + koxFile.getPath());
+        String parentId = resolveParentId(koxFile.getPath());
+        if (parentId == null || driveService.move(fileId, koxFile.getName(), parentId) == null) {
+            log.warn("Cannot move " + previousPath + " to " + koxFile.getPath());
+            return;
+        }
+        syncMetrics.increment("drive.moves");
+        syncStateStore.moveRecords(previousPath, koxFile.getPath());
+    }
+
+    /**
+     * @return the updated file or null when the update failed
+     */
+    private File updateRegularFile(KoxFile koxFile, String fileId) {
+        String remoteChecksum = driveService.getMd5Checksum(fileId);
+        if (remoteChecksum != null && remoteChecksum.equals(koxFile.getSource().getChecksum(koxFile))) {
+            log.debug("Content not changed, skipping upload of " + koxFile.getName());
+            syncMetrics.increment("drive.upload.skipped");
+            Instant remoteModificationTime = driveService.getModificationDate(fileId);
+            File unchanged = new File()
+                    .setId(fileId)
+                    .setMd5Checksum(remoteChecksum)
+                    .setModifiedTime(remoteModificationTime == null ? null : new DateTime(remoteModificationTime.toEpochMilli()));
+            recordSynced(koxFile, unchanged);
+            return unchanged;
+        }
+
+        log.debug("Updating file: " + koxFile.getName());
+        try (TransferSource transfer = koxFile.getSource().openTransfer(koxFile)) {
+            if (transfer == null) {
+                log.warn("Cannot open content of " + koxFile.getPath());
+                return null;
+            }
+            DigestingChannel content = new DigestingChannel(transfer.getChannel());
+            File uploaded = verified(koxFile, transfer, content, driveService.updateFile(fileId, koxFile.getName(),
+                    Channels.newInputStream(content), transfer.getContentLength(), resumeKeyOf(koxFile)));
+            recordSynced(koxFile, uploaded);
+            return uploaded;
+        } catch (IOException e) {
+            log.warn(e);
+            return null;
+        }
+    }
+
+    /**
+     * Compares checksum of the bytes actually sent with what the source expected and what Drive received.
+     *
+     * @return the uploaded file or null when the checksums do not match
+     */
+    private File verified(KoxFile koxFile, TransferSource transfer, DigestingChannel content, File uploaded) {
+        if (uploaded == null)
+            return null;
+        String expected = transfer.getMd5();
+        // a completed resumable session returns without reading the content again
+        if (transfer.getContentLength() == null || content.getCount() == transfer.getContentLength()) {
+            String sent = content.getMd5();
+            if (expected != null && !expected.equals(sent)) {
+                log.warn("Content of " + koxFile.getPath() + " changed while uploading");
+                syncMetrics.increment("drive.upload.checksum.mismatches");
+                return null;
+            }
+            expected = sent;
+        }
+        if (expected != null && uploaded.getMd5Checksum() != null && !expected.equals(uploaded.getMd5Checksum())) {
+            log.warn(String.format("Checksum mismatch of uploaded %s, sent %s, Drive has %s", koxFile.getPath(), expected, uploaded.getMd5Checksum()));
+            syncMetrics.increment("drive.upload.checksum.mismatches");
+            return null;
+        }
+        return uploaded;
+    }
+
+    private void recordSynced(KoxFile koxFile, File uploaded) {
+        if (uploaded == null)
+            return;
+        Date modificationDate = koxFile.getModificationDate();
+        syncStateStore.putRecord(SyncRecord.builder()
+                .path(koxFile.getPath())
+                .localModifiedMillis(modificationDate == null ? null : modificationDate.getTime())
+                .localMd5(uploaded.getMd5Checksum())
+                .remoteId(uploaded.getId())
+                .remoteMd5(uploaded.getMd5Checksum())
+                .remoteModifiedMillis(uploaded.getModifiedTime() == null ? null : uploaded.getModifiedTime().getValue())
+                .build());
+    }
+
+    private String resumeKeyOf(KoxFile koxFile) {
+        Date modificationDate = koxFile.getModificationDate();
+        return String.format("%s:%s:%s", koxFile.getPath(), koxFile.getSize(), modificationDate == null ? "" : modificationDate.getTime());
+    }
+
+    /**
+     * Creates the folder together with every folder below it which the source already has locally, all in one go.
+     * Events of those subfolders then find them in place.
+     */
     private void sendDirectoryRecursive(KoxFile koxFile) {
         log.info("Sending directory: " + koxFile.getName());
         if (driveService.getId(koxFile.getName(), koxFile.getPath()) != null) {
@@ -188,25 +528,48 @@ public class GoogleDriveSynchronizer implements ISynchronizer {
             return;
         }
 
-        createDirectoryRecursive(koxFile.getPath());
+        List<String> paths = new ArrayList<>();
+        paths.add(koxFile.getPath());
+        Path localPath = koxFile.getSource().getLocalPath(koxFile);
+        if (localPath != null)
+            paths.addAll(listSubdirectories(localPath, koxFile.getPath()));
+        int failed = driveService.ensureFolders(paths);
+        if (failed > 0)
+            log.warn("Cannot create " + failed + " of " + paths.size() + " folders of " + koxFile.getPath());
+        else if (paths.size() > 1)
+            syncMetrics.add("drive.folders.bulk", paths.size());
     }
 
-    private String createDirectoryRecursive(String path) {
-        List<String> fileNames = Arrays.stream(path.split("/")).filter(s -> !s.isEmpty()).collect(Collectors.toList());
-        String parentId = "root";
-        StringBuilder currentPath = new StringBuilder(fileNames.get(0));
-        for (String fileName : fileNames) {
-            String driveId = driveService.getId(fileName, currentPath.toString());
-
-            if (driveId == null) {
-                parentId = driveService.createDirectory(parentId, fileName);
-            } else {
-                parentId = driveId;
-            }
-            currentPath.append("/").append(fileName);
+    /**
+     * @return paths of at most the configured number of directories below the local directory
+     */
+    private List<String> listSubdirectories(Path localPath, String path) {
+        List<String> subdirectories = new ArrayList<>();
+        try {
+            Files.walkFileTree(localPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (dir.equals(localPath))
+                        return FileVisitResult.CONTINUE;
+                    if (subdirectories.size() >= folderBulkLimit)
+                        return FileVisitResult.TERMINATE;
+                    StringBuilder subdirectory = new StringBuilder(path);
+                    localPath.relativize(dir).forEach(name -> subdirectory.append('/').append(name));
+                    subdirectories.add(subdirectory.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Cannot list directories below " + localPath + ": " + e.getMessage());
         }
-        return parentId;
+        return subdirectories;
     }
+
     private String getFilePath(File file) {
         return driveService.getFilePath(file.getId(), file.getName());
     }
@@ -216,7 +579,7 @@ public class GoogleDriveSynchronizer implements ISynchronizer {
     }
 
     private FileType resolveFileType(String mimeType) {
-        return mimeType.equals("application/vnd.google-apps.folder") ? DIR : REGULAR_FILE;
+        return mimeType.equals(DriveMetadataCache.FOLDER_MIME_TYPE) ? DIR : REGULAR_FILE;
     }
 
 }
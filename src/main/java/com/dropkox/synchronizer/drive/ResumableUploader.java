@@ -0,0 +1,242 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drive resumable upload protocol: the content is sent in chunks of a configured size and the session URI is
+ * persisted, so a failed or interrupted upload continues from the last byte acknowledged by Drive. A chunk failing
+ * on a transient error is followed by a status query and the upload goes on from the acknowledged byte, up to the
+ * configured number of attempts in a row.
+ */
+@Log4j
+class ResumableUploader {
+
+    private static final String UPLOAD_URL = "https://www.googleapis.com/upload/drive/v3/files";
+    private static final int CHUNK_GRANULARITY = 256 * 1024;
+    private static final int RESUME_INCOMPLETE = 308;
+    private static final int SESSION_EXPIRED = 404;
+    private static final int SESSION_GONE = 410;
+
+    private final Drive driveService;
+    private final DriveRequestExecutor requestExecutor;
+    private final HttpRequestFactory requestFactory;
+    private final UploadSessionStore sessionStore;
+    private final int chunkSize;
+    private final SyncMetrics syncMetrics;
+    private final AtomicLong lastThroughput = new AtomicLong();
+
+    ResumableUploader(@NonNull final Drive driveService, @NonNull final DriveRequestExecutor requestExecutor,
+                      @NonNull final UploadSessionStore sessionStore, final int chunkSize, @NonNull final SyncMetrics syncMetrics) {
+        this.driveService = driveService;
+        this.requestExecutor = requestExecutor;
+        this.requestFactory = driveService.getRequestFactory();
+        this.sessionStore = sessionStore;
+        this.chunkSize = Math.max(CHUNK_GRANULARITY, chunkSize / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+        this.syncMetrics = syncMetrics;
+        syncMetrics.gauge("drive.upload.throughput", lastThroughput::get);
+    }
+
+    /**
+     * Uploads a new file or new content of an existing one, resuming the session stored under the resume key
+     * if there is one.
+     *
+     * @param fileId    ID of the updated file or null to create a new one
+     * @param metadata  name and parents of the created file, changed fields of the updated one
+     * @param mimeType  content type
+     * @param content   content stream, positioned at its beginning
+     * @param length    content length in bytes
+     * @param resumeKey key identifying this exact content, e.g. path, size and modification time
+     * @param fields    fields of the uploaded file to return
+     * @return uploaded file
+     */
+    File upload(final String fileId, @NonNull final File metadata, @NonNull final String mimeType, @NonNull final InputStream content,
+                final long length, @NonNull final String resumeKey, @NonNull final String fields) throws IOException {
+        long startNanos = System.nanoTime();
+        long offset = 0;
+        String sessionUri = sessionStore.get(resumeKey);
+        if (sessionUri != null) {
+            UploadStatus status = queryStatus(sessionUri, length);
+            if (status == null) {
+                sessionUri = null;
+            } else if (status.file != null) {
+                sessionStore.remove(resumeKey);
+                return status.file;
+            } else {
+                offset = status.offset;
+                IOUtils.skipFully(content, offset);
+                syncMetrics.add("drive.upload.resumed.bytes", offset);
+                log.info("Resuming upload of " + metadata.getName() + " from byte " + offset);
+            }
+        }
+        if (sessionUri == null) {
+            sessionUri = startSession(fileId, metadata, mimeType, length, fields);
+            sessionStore.put(resumeKey, sessionUri);
+        }
+
+        File uploaded = sendChunks(sessionUri, mimeType, content, offset, length);
+        sessionStore.remove(resumeKey);
+
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        lastThroughput.set((length - offset) * 1000 / elapsedMillis);
+        return uploaded;
+    }
+
+    private String startSession(String fileId, File metadata, String mimeType, long length, String fields) throws IOException {
+        GenericUrl url = new GenericUrl(fileId == null ? UPLOAD_URL : UPLOAD_URL + "/" + fileId);
+        url.put("uploadType", "resumable");
+        url.put("fields", fields);
+        HttpRequest request = requestFactory.buildPostRequest(url, new JsonHttpContent(driveService.getJsonFactory(), metadata));
+        if (fileId != null)
+            request.getHeaders().set("X-HTTP-Method-Override", "PATCH");
+        request.getHeaders().set("X-Upload-Content-Type", mimeType);
+        request.getHeaders().set("X-Upload-Content-Length", length);
+        HttpResponse response = requestExecutor.execute(request::execute);
+        try {
+            return response.getHeaders().getLocation();
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private File sendChunks(String sessionUri, String mimeType, InputStream content, long offset, long length) throws IOException {
+        byte[] buffer = new byte[chunkSize];
+        int buffered = 0;
+        long bufferStart = offset;
+        // failures since Drive last acknowledged new bytes
+        int failures = 0;
+        while (true) {
+            buffered = fill(content, buffer, buffered);
+            long bufferEnd = bufferStart + buffered;
+            if (buffered == 0 && bufferEnd < length)
+                throw new IOException("Content ended at byte " + bufferEnd + " of " + length);
+
+            UploadStatus status = null;
+            boolean failed = false;
+            while (status == null) {
+                try {
+                    status = failed
+                            ? queryStatus(sessionUri, length)
+                            : sendChunk(sessionUri, mimeType, buffer, buffered, bufferStart, length);
+                    if (status == null)
+                        throw new IOException("Upload session expired at byte " + bufferStart + " of " + length);
+                } catch (IOException e) {
+                    if (!DriveRequestExecutor.isRetryable(e) || ++failures >= requestExecutor.getMaxAttempts())
+                        throw e;
+                    log.debug("Upload chunk failed (" + e.getMessage() + "), querying the session");
+                    requestExecutor.backOff(failures);
+                    failed = true;
+                }
+            }
+            if (status.file != null) {
+                syncMetrics.add("drive.upload.bytes", bufferEnd - bufferStart);
+                return status.file;
+            }
+
+            long acknowledged = status.offset;
+            if (acknowledged < bufferStart || acknowledged > bufferEnd)
+                // the bytes Drive wants next are no longer buffered; the stored session resumes from them
+                // with a fresh stream when the operation is replayed
+                throw new IOException("Drive acknowledged " + acknowledged + " bytes, outside of the sent range "
+                        + bufferStart + "-" + bufferEnd);
+            int sent = (int) (acknowledged - bufferStart);
+            if (sent > 0)
+                failures = 0;
+            syncMetrics.add("drive.upload.bytes", sent);
+            System.arraycopy(buffer, sent, buffer, 0, buffered - sent);
+            buffered -= sent;
+            bufferStart = acknowledged;
+        }
+    }
+
+    private UploadStatus sendChunk(String sessionUri, String mimeType, byte[] buffer, int buffered, long bufferStart,
+                                   long length) throws IOException {
+        HttpRequest request = requestFactory.buildPutRequest(new GenericUrl(sessionUri),
+                new ByteArrayContent(mimeType, buffer, 0, buffered));
+        request.getHeaders().setContentRange(buffered == 0
+                ? "bytes */" + length
+                : String.format("bytes %d-%d/%d", bufferStart, bufferStart + buffered - 1, length));
+        HttpResponse response = execute(request);
+        try {
+            if (response.isSuccessStatusCode())
+                return new UploadStatus(0, response.parseAs(File.class));
+            if (response.getStatusCode() != RESUME_INCOMPLETE)
+                throw new HttpResponseException(response);
+            return new UploadStatus(acknowledgedBytes(response), null);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private UploadStatus queryStatus(String sessionUri, long length) throws IOException {
+        HttpRequest request = requestFactory.buildPutRequest(new GenericUrl(sessionUri), new EmptyContent());
+        request.getHeaders().setContentRange("bytes */" + length);
+        HttpResponse response = execute(request);
+        try {
+            if (response.isSuccessStatusCode())
+                return new UploadStatus(0, response.parseAs(File.class));
+            if (response.getStatusCode() == RESUME_INCOMPLETE)
+                return new UploadStatus(acknowledgedBytes(response), null);
+            if (response.getStatusCode() == SESSION_EXPIRED || response.getStatusCode() == SESSION_GONE)
+                return null;
+            throw new HttpResponseException(response);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private HttpResponse execute(HttpRequest request) throws IOException {
+        request.setParser(driveService.getObjectParser());
+        request.setThrowExceptionOnExecuteError(false);
+        request.setFollowRedirects(false);
+        requestExecutor.throttle(1);
+        HttpResponse response = request.execute();
+        if (!response.isSuccessStatusCode() && response.getStatusCode() != RESUME_INCOMPLETE)
+            requestExecutor.recordOutcome(new HttpResponseException.Builder(response.getStatusCode(),
+                    response.getStatusMessage(), response.getHeaders()).build());
+        else
+            requestExecutor.recordOutcome(null);
+        return response;
+    }
+
+    private long acknowledgedBytes(HttpResponse response) {
+        String range = response.getHeaders().getRange();
+        if (range == null)
+            return 0;
+        return Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+    }
+
+    private int fill(InputStream content, byte[] buffer, int buffered) throws IOException {
+        while (buffered < buffer.length) {
+            int read = content.read(buffer, buffered, buffer.length - buffered);
+            if (read < 0)
+                break;
+            buffered += read;
+        }
+        return buffered;
+    }
+
+    @RequiredArgsConstructor
+    private static class UploadStatus {
+        private final long offset;
+        private final File file;
+    }
+}
@@ -0,0 +1,72 @@
+package com.dropkox.synchronizer.drive;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Properties;
+
+/**
+ * Persists URIs of unfinished resumable upload sessions, so an upload interrupted by a restart continues
+ * from the last acknowledged byte. Drive keeps a session for a week, older entries are dropped.
+ */
+@Log4j
+class UploadSessionStore {
+
+    private static final long SESSION_TTL_MILLIS = Duration.ofDays(6).toMillis();
+
+    private final Path storeFile;
+    private final Properties sessions = new Properties();
+
+    UploadSessionStore(@NonNull final Path storeFile) {
+        this.storeFile = storeFile;
+        if (Files.exists(storeFile)) {
+            try (InputStream in = Files.newInputStream(storeFile)) {
+                sessions.load(in);
+            } catch (IOException e) {
+                log.warn("Cannot read upload sessions: " + e.getMessage());
+            }
+        }
+    }
+
+    synchronized String get(@NonNull final String key) {
+        String value = sessions.getProperty(key);
+        if (value == null)
+            return null;
+        String[] uriAndTime = value.split(" ");
+        if (System.currentTimeMillis() - Long.parseLong(uriAndTime[1]) > SESSION_TTL_MILLIS) {
+            remove(key);
+            return null;
+        }
+        return uriAndTime[0];
+    }
+
+    synchronized void put(@NonNull final String key, @NonNull final String sessionUri) {
+        sessions.setProperty(key, sessionUri + " " + System.currentTimeMillis());
+        save();
+    }
+
+    synchronized void remove(@NonNull final String key) {
+        if (sessions.remove(key) != null)
+            save();
+    }
+
+    private void save() {
+        try {
+            Files.createDirectories(storeFile.getParent());
+            Path tempFile = storeFile.resolveSibling(storeFile.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                sessions.store(out, "DropKox resumable upload sessions");
+            }
+            Files.move(tempFile, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Cannot save upload sessions: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.dropkox.synchronizer.drive.config;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.net.ProxySelector;
+
+/**
+ * HTTP transport of the Drive client: a pool of keep-alive connections shared by all Drive calls, so concurrent
+ * workers do not pay a TCP and TLS handshake per request. The Apache transport of the Google client takes only
+ * the pre-4.3 client API, hence the deprecated classes.
+ * <p>
+ * Gzip is left to the Google client, which asks for compressed responses and decodes them. Retries are left to
+ * the Drive request executor; the HTTP client never repeats a request by itself.
+ */
+@SuppressWarnings("deprecation")
+public final class DriveHttpTransport {
+
+    private static final int SOCKET_BUFFER_SIZE = 8192;
+
+    private DriveHttpTransport() {
+    }
+
+    /**
+     * @param maxConnectionsPerRoute connections kept open to one host, all Drive calls go to one or two hosts
+     * @param maxConnections         connections kept open in total
+     * @param keepAliveMillis        longest time an idle connection is kept, shortened when the server asks to
+     */
+    public static HttpTransport pooled(final int maxConnectionsPerRoute, final int maxConnections, final long keepAliveMillis) {
+        SchemeRegistry schemeRegistry = SchemeRegistryFactory.createSystemDefault();
+        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager(schemeRegistry);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(Math.max(maxConnections, maxConnectionsPerRoute));
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager, params);
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        httpClient.setRoutePlanner(new ProxySelectorRoutePlanner(schemeRegistry, ProxySelector.getDefault()));
+        httpClient.setKeepAliveStrategy((response, context) -> {
+            long serverMillis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverMillis > 0 ? Math.min(serverMillis, keepAliveMillis) : keepAliveMillis;
+        });
+        return new ApacheHttpTransport(httpClient);
+    }
+}
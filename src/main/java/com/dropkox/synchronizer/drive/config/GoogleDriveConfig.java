@@ -6,14 +6,12 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
-import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -22,7 +20,6 @@ import org.springframework.context.annotation.Configuration;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.security.GeneralSecurityException;
 import java.util.Set;
 
 @Configuration
@@ -35,6 +32,13 @@ public class GoogleDriveConfig {
     @Value("${app.data}")
     private java.io.File DATA_STORE_DIR;
 
+    @Value("${drive.http.max-connections-per-route:20}")
+    private int maxConnectionsPerRoute;
+    @Value("${drive.http.max-connections:40}")
+    private int maxConnections;
+    @Value("${drive.http.keep-alive-ms:30000}")
+    private long keepAliveMillis;
+
     private static final JsonFactory JSON_FACTORY =
             JacksonFactory.getDefaultInstance();
 
@@ -42,9 +46,8 @@ public class GoogleDriveConfig {
 
     private static final Set<String> SCOPES = DriveScopes.all();
 
-    @SneakyThrows(GeneralSecurityException.class)
     private Credential authorize() throws IOException {
-        HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+        HTTP_TRANSPORT = DriveHttpTransport.pooled(maxConnectionsPerRoute, maxConnections, keepAliveMillis);
         FileDataStoreFactory DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
 
         // Load client secrets.
@@ -0,0 +1,208 @@
+package com.dropkox.synchronizer.filesystem;
+
+import com.dropkox.core.hash.Checksums;
+import com.dropkox.core.metrics.SyncMetrics;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Adler32;
+
+/**
+ * Persistent index of local file fingerprints keyed by path relative to the synchronized root.
+ * Fingerprints are computed from memory-mapped reads on a background pool and reused as long as size and
+ * modification time of the file are unchanged.
+ */
+@Log4j
+public class ContentHashIndex {
+
+    private static final long MAP_WINDOW = 64L * FileFingerprint.BLOCK_SIZE;
+    private static final long SAVE_INTERVAL_SECONDS = 30;
+
+    private final Path indexFile;
+    private final SyncMetrics syncMetrics;
+    private final ExecutorService hashingPool;
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, FileFingerprint> fingerprints = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<FileFingerprint>> inProgress = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    public ContentHashIndex(@NonNull final Path indexFile, final int threads, @NonNull final SyncMetrics syncMetrics) {
+        this.indexFile = indexFile;
+        this.syncMetrics = syncMetrics;
+        this.hashingPool = Executors.newFixedThreadPool(threads);
+        load();
+        saver.scheduleWithFixedDelay(this::saveIfDirty, SAVE_INTERVAL_SECONDS, SAVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        syncMetrics.gauge("local.index.size", fingerprints::size);
+        syncMetrics.gauge("local.index.pending", inProgress::size);
+    }
+
+    /**
+     * @return stored fingerprint if it still matches size and modification time of the file
+     */
+    public Optional<FileFingerprint> getIfFresh(@NonNull final String relativePath, @NonNull final Path absolutePath) {
+        FileFingerprint fingerprint = fingerprints.get(relativePath);
+        if (fingerprint == null)
+            return Optional.empty();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+            return fingerprint.isFreshFor(attributes.size(), attributes.lastModifiedTime().toMillis())
+                    ? Optional.of(fingerprint) : Optional.empty();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Returns the stored fingerprint when fresh, otherwise schedules hashing of the file on the background pool.
+     */
+    public CompletableFuture<FileFingerprint> fingerprint(@NonNull final String relativePath, @NonNull final Path absolutePath) {
+        Optional<FileFingerprint> fresh = getIfFresh(relativePath, absolutePath);
+        if (fresh.isPresent())
+            return CompletableFuture.completedFuture(fresh.get());
+
+        CompletableFuture<FileFingerprint> future = new CompletableFuture<>();
+        CompletableFuture<FileFingerprint> running = inProgress.putIfAbsent(relativePath, future);
+        if (running != null)
+            return running;
+
+        hashingPool.execute(() -> {
+            try {
+                FileFingerprint fingerprint = compute(relativePath, absolutePath);
+                inProgress.remove(relativePath, future);
+                future.complete(fingerprint);
+            } catch (RuntimeException e) {
+                inProgress.remove(relativePath, future);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public void remove(@NonNull final String relativePath) {
+        if (fingerprints.remove(relativePath) != null)
+            dirty.set(true);
+    }
+
+    /**
+     * Keeps fingerprints of a moved file, or of everything below a moved directory, under the new paths.
+     * A rename keeps size and modification time, so they stay fresh and nothing is hashed again.
+     */
+    public void move(@NonNull final String fromPath, @NonNull final String toPath) {
+        for (String path : new ArrayList<>(fingerprints.keySet())) {
+            if (!path.equals(fromPath) && !path.startsWith(fromPath + "/"))
+                continue;
+            FileFingerprint fingerprint = fingerprints.remove(path);
+            if (fingerprint != null) {
+                fingerprints.put(toPath + path.substring(fromPath.length()), fingerprint);
+                dirty.set(true);
+            }
+        }
+    }
+
+    public void close() {
+        saver.shutdown();
+        hashingPool.shutdown();
+        saveIfDirty();
+    }
+
+    private FileFingerprint compute(String relativePath, Path absolutePath) {
+        try (FileChannel channel = FileChannel.open(absolutePath, StandardOpenOption.READ)) {
+            BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+            long size = channel.size();
+            MessageDigest md5 = Checksums.newMd5();
+            int[] blockHashes = new int[(int) ((size + FileFingerprint.BLOCK_SIZE - 1) / FileFingerprint.BLOCK_SIZE)];
+            Adler32 blockHash = new Adler32();
+
+            int block = 0;
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+                md5.update(window.duplicate());
+                while (window.hasRemaining()) {
+                    window.limit(Math.min(window.capacity(), window.position() + FileFingerprint.BLOCK_SIZE));
+                    blockHash.reset();
+                    blockHash.update(window);
+                    blockHashes[block++] = (int) blockHash.getValue();
+                    window.limit(window.capacity());
+                }
+            }
+
+            FileFingerprint fingerprint = FileFingerprint.builder()
+                    .size(size)
+                    .modifiedMillis(attributes.lastModifiedTime().toMillis())
+                    .md5(Checksums.toHex(md5.digest()))
+                    .blockHashes(blockHashes)
+                    .build();
+            logDelta(relativePath, fingerprints.put(relativePath, fingerprint), fingerprint);
+            dirty.set(true);
+            syncMetrics.increment("local.index.hashed.files");
+            syncMetrics.add("local.index.hashed.bytes", size);
+            return fingerprint;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot hash " + absolutePath, e);
+        }
+    }
+
+    private void logDelta(String relativePath, FileFingerprint previous, FileFingerprint current) {
+        if (previous == null || previous.getMd5().equals(current.getMd5()))
+            return;
+        List<Integer> changedBlocks = current.changedBlocks(previous);
+        syncMetrics.add("local.index.changed.blocks", changedBlocks.size());
+        log.debug(String.format("%s: %d of %d blocks changed", relativePath, changedBlocks.size(), current.getBlockHashes().length));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        if (Files.notExists(indexFile))
+            return;
+        try (InputStream in = Files.newInputStream(indexFile);
+             ObjectInputStream objectInputStream = new ObjectInputStream(in)) {
+            fingerprints.putAll((Map<String, FileFingerprint>) objectInputStream.readObject());
+            log.debug("Loaded " + fingerprints.size() + " fingerprints from " + indexFile);
+        } catch (IOException | ClassNotFoundException e) {
+            log.warn("Cannot read content index, it will be rebuilt: " + e.getMessage());
+        }
+    }
+
+    private void saveIfDirty() {
+        if (!dirty.getAndSet(false))
+            return;
+        try {
+            Files.createDirectories(indexFile.getParent());
+            Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tempFile);
+                 ObjectOutputStream objectOutputStream = new ObjectOutputStream(out)) {
+                objectOutputStream.writeObject(new HashMap<>(fingerprints));
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty.set(true);
+            log.warn("Cannot save content index: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.dropkox.synchronizer.filesystem;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content identity of a local file: size and modification time it was computed for, whole-file MD5 (comparable
+ * with Drive's {@code md5Checksum}) and rolling Adler-32 checksums of consecutive blocks.
+ */
+@Builder
+@Data
+public class FileFingerprint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    private long size;
+    private long modifiedMillis;
+    @NonNull
+    private String md5;
+    @NonNull
+    private int[] blockHashes;
+
+    boolean isFreshFor(long size, long modifiedMillis) {
+        return this.size == size && this.modifiedMillis == modifiedMillis;
+    }
+
+    /**
+     * @return indexes of blocks which differ from the previous version of the file
+     */
+    public List<Integer> changedBlocks(@NonNull final FileFingerprint previous) {
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < blockHashes.length; i++) {
+            if (i >= previous.blockHashes.length || blockHashes[i] != previous.blockHashes[i])
+                changed.add(i);
+        }
+        return changed;
+    }
+}
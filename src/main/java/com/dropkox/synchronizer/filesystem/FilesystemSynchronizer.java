@@ -1,13 +1,24 @@
 package com.dropkox.synchronizer.filesystem;
 
+import com.dropkox.core.concurrent.BackpressurePolicy;
+import com.dropkox.core.io.BufferPool;
+import com.dropkox.core.metrics.SyncMetrics;
 import com.dropkox.model.EventType;
 import com.dropkox.model.FileEvent;
 import com.dropkox.model.FileType;
 import com.dropkox.model.KoxFile;
 import com.dropkox.synchronizer.ISynchronizer;
 import com.dropkox.synchronizer.SynchronizationService;
+import com.dropkox.synchronizer.TransferSource;
+import com.dropkox.synchronizer.state.SyncRecord;
+import com.dropkox.synchronizer.state.SyncStateStore;
+import com.dropkox.watcher.CoalescingEventProcessor;
 import com.dropkox.watcher.IFileSystemEventProcessor;
+import com.dropkox.watcher.IFileSystemWatcher;
+import com.dropkox.watcher.PollingWatcherService;
 import com.dropkox.watcher.RecursiveWatcherService;
+import com.dropkox.watcher.WatcherEngine;
+import com.dropkox.watcher.WatcherSettings;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
@@ -21,22 +32,37 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static javaslang.API.$;
 import static javaslang.API.Case;
@@ -48,30 +74,114 @@ import static javaslang.Predicates.isIn;
 @Component
 @Log4j
 @RequiredArgsConstructor(onConstructor = @__(@Autowired))
-@ToString(exclude = {"synchronizationService", "recursiveWatcherService"})
+@ToString(exclude = {"synchronizationService", "syncMetrics", "syncStateStore", "fileSystemWatcher", "eventCoalescer", "contentHashIndex", "subtreeImporter", "localFileWriter"})
 public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventProcessor {
 
+    private static final long IMPORT_PROGRESS_INTERVAL = 10_000;
+
     @Value("${local.dir}")
     private File rootFolder;
+    @Value("${app.state}")
+    private File stateFolder;
+    @Value("${local.index.threads:2}")
+    private int indexThreads;
+    @Value("${local.scan.threads:8}")
+    private int scanThreads;
+    @Value("${local.watcher.engine:NATIVE}")
+    private WatcherEngine watcherEngine;
+    @Value("${local.watcher.quiet-window-ms:500}")
+    private long quietWindowMillis;
+    @Value("${local.watcher.handler-threads:4}")
+    private int watcherHandlerThreads;
+    @Value("${local.watcher.registration-threads:4}")
+    private int watcherRegistrationThreads;
+    @Value("${local.watcher.max-watches:50000}")
+    private int maxWatches;
+    @Value("${local.watcher.cold-poll-interval-ms:10000}")
+    private long coldPollIntervalMillis;
+    @Value("${local.watcher.poll-interval-ms:1000}")
+    private long pollIntervalMillis;
+    @Value("${local.watcher.max-poll-interval-ms:30000}")
+    private long maxPollIntervalMillis;
+    @Value("${local.watcher.move-window-ms:300}")
+    private long moveWindowMillis;
+    @Value("${local.import.max-in-flight:256}")
+    private int importMaxInFlight;
+    @Value("${transfer.buffer-size:262144}")
+    private int transferBufferSize;
+    @Value("${transfer.buffers:16}")
+    private int transferBuffers;
+    @Value("${local.workers:4}")
+    private int workersCount;
 
     private final Set<Path> inProgressPaths = new ConcurrentHashSet<>();
     private final Map<String, Object> recentUpdates = ExpiringMap.builder().expiration(5, TimeUnit.SECONDS).build();
+    // target paths of moves applied here, by previous path
+    private final Map<String, String> recentMoves = ExpiringMap.builder().expiration(5, TimeUnit.SECONDS).build();
 
     @NonNull
     private SynchronizationService synchronizationService;
+    @NonNull
+    private SyncMetrics syncMetrics;
+    @NonNull
+    private SyncStateStore syncStateStore;
 
-    private RecursiveWatcherService recursiveWatcherService;
+    private IFileSystemWatcher fileSystemWatcher;
+    private CoalescingEventProcessor eventCoalescer;
+    private ContentHashIndex contentHashIndex;
+    private ExecutorService subtreeImporter;
+    private LocalFileWriter localFileWriter;
 
     @PostConstruct
     public void start() {
-        recursiveWatcherService = new RecursiveWatcherService(this, rootFolder);
-        synchronizationService.register(this);
+        contentHashIndex = new ContentHashIndex(stateFolder.toPath().resolve("local-index.bin"), indexThreads, syncMetrics);
+        localFileWriter = new LocalFileWriter(new BufferPool(transferBufferSize, transferBuffers), syncMetrics);
+        eventCoalescer = new CoalescingEventProcessor(this, quietWindowMillis, syncMetrics);
+        WatcherSettings watcherSettings = WatcherSettings.builder()
+                .handlerThreads(watcherHandlerThreads)
+                .registrationThreads(watcherRegistrationThreads)
+                .maxWatches(maxWatches)
+                .coldPollIntervalMillis(coldPollIntervalMillis)
+                .pollIntervalMillis(pollIntervalMillis)
+                .maxPollIntervalMillis(maxPollIntervalMillis)
+                .moveWindowMillis(moveWindowMillis)
+                .build();
+        fileSystemWatcher = Match(watcherEngine).of(
+                Case(is(WatcherEngine.POLLING), o -> new PollingWatcherService(eventCoalescer, rootFolder, syncMetrics, watcherSettings)),
+                Case($(), o -> new RecursiveWatcherService(eventCoalescer, rootFolder, syncMetrics, watcherSettings))
+        );
+        log.info("Watching " + rootFolder + " with " + watcherEngine + " watcher engine");
+        subtreeImporter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "local-importer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronizationService.register(this, workersCount);
+    }
+
+    @PreDestroy
+    public void stop() {
+        subtreeImporter.shutdownNow();
+        eventCoalescer.close();
+        contentHashIndex.close();
     }
 
 
     @SneakyThrows(IOException.class)
     public void startListening() {
-        recursiveWatcherService.init();
+        fileSystemWatcher.init();
+    }
+
+    /**
+     * Keeps local changes back until {@link #releaseEvents()}, so that changes made while the startup
+     * reconciliation runs are applied on top of it.
+     */
+    public void holdEvents() {
+        eventCoalescer.hold();
+    }
+
+    public void releaseEvents() {
+        eventCoalescer.release();
     }
 
     @Override
@@ -79,7 +189,7 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
         recentUpdates.put(fileEvent.getKoxFile().getPath(), new Object());
 
         KoxFile koxFile = fileEvent.getKoxFile();
-        if (!isFileNeededToUpdate(koxFile)) {
+        if (fileEvent.getEventType() != EventType.MOVE && !isFileNeededToUpdate(koxFile)) {
             log.warn("Ignoring change: " + fileEvent);
             return;
         }
@@ -87,6 +197,7 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
         Match(fileEvent.getEventType()).of(
                 Case($(isIn(EventType.CREATE, EventType.MODIFY)), o -> run(() -> fileModified(koxFile))),
                 Case(is(EventType.DELETE), o -> run(() -> fileDeleted(koxFile))),
+                Case(is(EventType.MOVE), o -> run(() -> fileMoved(koxFile))),
                 Case($(), o -> run(() -> {
                     throw new UnsupportedOperationException("Event type not supported yet! " + fileEvent.getEventType());
                 }))
@@ -103,8 +214,76 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
         }
     }
 
+    @Override
+    public TransferSource openTransfer(@NonNull final KoxFile koxFile) {
+        Path absolutePath = getAbsolutePath(koxFile.getPath());
+        try {
+            FileChannel channel = FileChannel.open(absolutePath, StandardOpenOption.READ);
+            return TransferSource.builder()
+                    .channel(channel)
+                    .contentLength(channel.size())
+                    .md5(contentHashIndex.getIfFresh(koxFile.getPath(), absolutePath).map(FileFingerprint::getMd5).orElse(null))
+                    .build();
+        } catch (IOException e) {
+            log.warn("Cannot open " + absolutePath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public Path getLocalPath(@NonNull final KoxFile koxFile) {
+        return getAbsolutePath(koxFile.getPath());
+    }
+
+    @Override
+    public String getChecksum(@NonNull final KoxFile koxFile) {
+        try {
+            return contentHashIndex.fingerprint(koxFile.getPath(), getAbsolutePath(koxFile.getPath())).join().getMd5();
+        } catch (CompletionException e) {
+            log.warn("Cannot compute checksum of " + koxFile.getPath(), e.getCause());
+            return null;
+        }
+    }
+
+    @Override
+    public void importSubtree(@NonNull final KoxFile directory) {
+        acceptSubdirectories(Paths.get(directory.getPath()), CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Walks the whole local tree in parallel.
+     *
+     * @return every local file and directory keyed by its path
+     */
+    public Map<String, KoxFile> listLocalFiles() {
+        LocalTreeScanner scanner = new LocalTreeScanner(rootFolder.toPath(), scanThreads);
+        syncMetrics.gauge("reconcile.local.scanned", scanner::getScanned);
+        Map<String, KoxFile> files = new HashMap<>();
+        scanner.scan().forEach((path, attributes) -> {
+            if (!LocalFileWriter.isTemporary(path))
+                files.put(path.toString(), toKoxFile(path, attributes));
+        });
+        return files;
+    }
+
+    private KoxFile toKoxFile(Path relativePath, BasicFileAttributes attributes) {
+        boolean isFile = attributes.isRegularFile();
+        return KoxFile.builder()
+                .fileType(isFile ? FileType.REGULAR_FILE : FileType.DIR)
+                .path(relativePath.toString())
+                .id(relativePath.toString())
+                .name(relativePath.getFileName().toString())
+                .source(this)
+                .modificationDate(new Date(attributes.lastModifiedTime().toMillis()))
+                .size(isFile ? attributes.size() : null)
+                .build();
+    }
+
     @Override
     public void processFilesystemEvent(@NonNull final Path path, @NonNull final EventType eventType, @NonNull final FileType fileType) {
+        if (LocalFileWriter.isTemporary(path))
+            return;
+
         if (recentUpdates.containsKey(path.toString())) {
             log.debug("Skipping recent update");
             return;
@@ -112,14 +291,17 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
 
         String name = getNameFromPath(path);
         Instant modificationDate;
+        Long size = null;
         try {
             modificationDate = eventType == EventType.DELETE || fileType == FileType.DIR ? Instant.now() : Files.getLastModifiedTime(Paths.get(rootFolder + "/" + path)).toInstant();
+            if (eventType != EventType.DELETE && fileType == FileType.REGULAR_FILE)
+                size = Files.size(Paths.get(rootFolder + "/" + path));
         } catch (IOException e) {
             log.warn(e);
             modificationDate = Instant.MIN;
         }
 
-        String filePath = path.toString().startsWith("/") ? path.toString().substring(1) : path.toString();
+        String filePath = relativePathOf(path);
 
         KoxFile koxFile = KoxFile.builder()
                 .fileType(fileType)
@@ -128,6 +310,7 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
                 .name(name)
                 .source(this)
                 .modificationDate(Date.from(modificationDate))
+                .size(size)
                 .build();
         FileEvent fileEvent = FileEvent.builder()
                 .eventType(eventType)
@@ -140,46 +323,166 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
             return;
         }
 
-        synchronizationService.accept(fileEvent);
+        if (fileType == FileType.REGULAR_FILE)
+            refreshContentIndex(filePath, eventType);
+
+        CompletableFuture<Void> accepted = synchronizationService.accept(fileEvent);
 
         if (fileType == FileType.DIR && eventType == EventType.CREATE)
-            acceptSubdirectories(path);
+            acceptSubdirectories(path, accepted);
+    }
+
+    /**
+     * Sends the move as such, so the other side can move its copy instead of deleting it and receiving every byte
+     * again. Moves from or to a temporary file are the last step of a write and stay a delete and a create.
+     */
+    @Override
+    public void processFilesystemMove(@NonNull final Path fromPath, @NonNull final Path toPath, @NonNull final FileType fileType) {
+        if (LocalFileWriter.isTemporary(fromPath) || LocalFileWriter.isTemporary(toPath)) {
+            IFileSystemEventProcessor.super.processFilesystemMove(fromPath, toPath, fileType);
+            return;
+        }
+
+        String previousPath = relativePathOf(fromPath);
+        String filePath = relativePathOf(toPath);
+        if (recentMoves.remove(previousPath, filePath)) {
+            log.debug("Skipping recent move");
+            return;
+        }
+        Path absolutePath = getAbsolutePath(filePath);
+        if (inProgressPaths.contains(absolutePath)) {
+            log.debug("File under processing");
+            return;
+        }
+
+        Date modificationDate = new Date();
+        Long size = null;
+        try {
+            if (fileType == FileType.REGULAR_FILE) {
+                modificationDate = new Date(Files.getLastModifiedTime(absolutePath).toMillis());
+                size = Files.size(absolutePath);
+            }
+        } catch (IOException e) {
+            log.warn(e);
+        }
+        contentHashIndex.move(previousPath, filePath);
+
+        syncMetrics.increment("local.moves");
+        synchronizationService.accept(FileEvent.builder()
+                .eventType(EventType.MOVE)
+                .koxFile(KoxFile.builder()
+                        .fileType(fileType)
+                        .path(filePath)
+                        .id(filePath)
+                        .name(getNameFromPath(toPath))
+                        .previousPath(previousPath)
+                        .source(this)
+                        .modificationDate(modificationDate)
+                        .size(size)
+                        .build())
+                .timestamp(System.currentTimeMillis())
+                .build());
+    }
+
+    private String relativePathOf(Path path) {
+        return path.toString().startsWith("/") ? path.toString().substring(1) : path.toString();
+    }
+
+    private void refreshContentIndex(String filePath, EventType eventType) {
+        if (eventType == EventType.DELETE)
+            contentHashIndex.remove(filePath);
+        else
+            contentHashIndex.fingerprint(filePath, getAbsolutePath(filePath));
     }
 
     private String getNameFromPath(@NonNull Path path) {
         return Arrays.stream(path.toString().split("/")).filter(p -> !p.isEmpty()).reduce((f, s) -> s).orElse(null);
     }
 
-    private void acceptSubdirectories(Path path) {
+    /**
+     * Imports the content of a directory which appeared as a whole, e.g. moved into the tree. The subtree is walked
+     * lazily on the importer thread with at most {@code local.import.max-in-flight} events in flight, and every
+     * directory is created before anything inside it is submitted.
+     */
+    private void acceptSubdirectories(Path path, CompletableFuture<Void> created) {
+        subtreeImporter.execute(() -> {
+            Path start = getAbsolutePath(path.toString());
+            Semaphore inFlight = new Semaphore(importMaxInFlight);
+            AtomicLong imported = new AtomicLong();
+            long startMillis = System.currentTimeMillis();
+            try {
+                created.join();
+                Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (dir.equals(start))
+                            return FileVisitResult.CONTINUE;
+                        CompletableFuture<Void> directoryCreated = importEntry(dir, attrs, inFlight, imported);
+                        if (directoryCreated == null)
+                            return FileVisitResult.TERMINATE;
+                        try {
+                            directoryCreated.join();
+                            return FileVisitResult.CONTINUE;
+                        } catch (CompletionException e) {
+                            log.warn("Skipping content of " + dir + ", it was not created", e.getCause());
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (!attrs.isRegularFile() || LocalFileWriter.isTemporary(file))
+                            return FileVisitResult.CONTINUE;
+                        return importEntry(file, attrs, inFlight, imported) == null ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        log.warn("Cannot import " + file + ": " + e.getMessage());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                inFlight.acquire(importMaxInFlight);
+                log.info(String.format("Imported %d entries of %s in %d ms", imported.get(), path, System.currentTimeMillis() - startMillis));
+            } catch (CompletionException e) {
+                log.warn("Not importing content of " + path + ", it was not created", e.getCause());
+            } catch (IOException | RuntimeException e) {
+                log.warn("Import of " + path + " failed", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * @return future of the submitted event or null when interrupted while waiting for room
+     */
+    private CompletableFuture<Void> importEntry(Path absolutePath, BasicFileAttributes attributes, Semaphore inFlight, AtomicLong imported) {
         try {
-            Path relativeStartPath = Paths.get(rootFolder + "/" + path);
-            Files.walk(relativeStartPath).filter(s -> !s.equals(relativeStartPath)).map(filePath -> {
-                String notAbsolutePath = filePath.toString().replace(rootFolder + "/", "");
-                try {
-                    return KoxFile.builder()
-                            .fileType(filePath.toFile().isFile() ? FileType.REGULAR_FILE : FileType.DIR)
-                            .path(notAbsolutePath)
-                            .id(notAbsolutePath)
-                            .name(getNameFromPath(filePath))
-                            .source(this)
-                            .modificationDate(new Date(Files.getLastModifiedTime(filePath).toMillis()))
-                            .build();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                return null;
-            }).map(koxFile -> FileEvent.builder()
-                    .eventType(EventType.CREATE)
-                    .koxFile(koxFile)
-                    .timestamp(System.currentTimeMillis())
-                    .build()
-            ).forEach(synchronizationService::accept);
-        } catch (IOException e) {
-            e.printStackTrace();
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        FileEvent fileEvent = FileEvent.builder()
+                .eventType(EventType.CREATE)
+                .koxFile(toKoxFile(rootFolder.toPath().relativize(absolutePath), attributes))
+                .timestamp(System.currentTimeMillis())
+                .build();
+        CompletableFuture<Void> future;
+        try {
+            future = synchronizationService.accept(fileEvent, BackpressurePolicy.BLOCK);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
         }
+        future.whenComplete((result, e) -> inFlight.release());
+        syncMetrics.increment("local.import.entries");
+        if (imported.incrementAndGet() % IMPORT_PROGRESS_INTERVAL == 0)
+            log.info("Imported " + imported.get() + " entries so far, " + absolutePath);
+        return future;
     }
 
-
     private boolean isFileNeededToUpdate(KoxFile koxFile) {
         if (koxFile.getFileType() == FileType.DIR)
             return true;
@@ -189,6 +492,20 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
         if (Files.notExists(absolutePath))
             return true;
 
+        String changedChecksum = koxFile.getSource().getChecksum(koxFile);
+        String currentChecksum = contentHashIndex.getIfFresh(koxFile.getPath(), absolutePath)
+                .map(FileFingerprint::getMd5)
+                .orElse(null);
+        if (changedChecksum != null && changedChecksum.equals(currentChecksum)) {
+            syncMetrics.increment("local.download.skipped");
+            try {
+                recordSynced(koxFile, absolutePath);
+            } catch (IOException e) {
+                log.warn("Cannot record state of " + koxFile.getPath(), e);
+            }
+            return false;
+        }
+
         Instant currentFileModificationTime;
         try {
             currentFileModificationTime = Files.getLastModifiedTime(absolutePath).toInstant();
@@ -201,6 +518,8 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
         log.debug("changedFileModificationTime " + changedFileModificationTime);
         log.debug("currentFileModificationTime " + currentFileModificationTime);
 
+        if (changedChecksum != null && currentChecksum != null)
+            return !changedFileModificationTime.isBefore(currentFileModificationTime);
         return currentFileModificationTime.plusSeconds(5).isBefore(changedFileModificationTime);
     }
 
@@ -214,20 +533,47 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
 
     private void saveRegularFile(KoxFile koxFile) {
         log.info("Saving file: " + koxFile.getName());
-        InputStream inputStream = koxFile.getSource().getInputStream(koxFile);
-
-        if (inputStream != null) {
-            Path absolutePath = getAbsolutePath(koxFile.getPath());
+        Path absolutePath = getAbsolutePath(koxFile.getPath());
+        Path sourcePath = koxFile.getSource().getLocalPath(koxFile);
+        if (sourcePath != null) {
             inProgressPaths.add(absolutePath);
             try {
-                Files.copy(inputStream, absolutePath, StandardCopyOption.REPLACE_EXISTING);
+                localFileWriter.copy(sourcePath, absolutePath);
+                recordSynced(koxFile, absolutePath);
             } catch (IOException e) {
                 log.warn(e);
             } finally {
                 inProgressPaths.remove(absolutePath);
             }
-        } else
-            log.warn("Input stream is null!");
+            return;
+        }
+
+        inProgressPaths.add(absolutePath);
+        try (TransferSource transfer = koxFile.getSource().openTransfer(koxFile)) {
+            if (transfer == null) {
+                log.warn("Cannot open content of " + koxFile.getPath());
+                return;
+            }
+            localFileWriter.write(transfer, absolutePath);
+            recordSynced(koxFile, absolutePath);
+        } catch (IOException e) {
+            log.warn(e);
+        } finally {
+            inProgressPaths.remove(absolutePath);
+        }
+    }
+
+    private void recordSynced(KoxFile koxFile, Path absolutePath) throws IOException {
+        String remoteMd5 = koxFile.getSource().getChecksum(koxFile);
+        Date remoteModificationDate = koxFile.getModificationDate();
+        syncStateStore.putRecord(SyncRecord.builder()
+                .path(koxFile.getPath())
+                .localModifiedMillis(Files.getLastModifiedTime(absolutePath).toMillis())
+                .localMd5(remoteMd5)
+                .remoteId(koxFile.getId())
+                .remoteMd5(remoteMd5)
+                .remoteModifiedMillis(remoteModificationDate == null ? null : remoteModificationDate.getTime())
+                .build());
     }
 
     private void saveDirectory(KoxFile koxFile) {
@@ -249,6 +595,86 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
         }
     }
 
+    /**
+     * Moves the local copy to where the file was moved remotely instead of downloading it again, atomically when
+     * both paths are on the same filesystem. Without a local copy at the old path the file is downloaded as usual,
+     * a file also changed remotely is downloaded after the move. Nothing already at the new path is replaced.
+     */
+    private void fileMoved(KoxFile koxFile) {
+        String previousPath = koxFile.getPreviousPath();
+        Path source = previousPath == null ? null : getAbsolutePath(previousPath);
+        if (source == null || Files.notExists(source, LinkOption.NOFOLLOW_LINKS)) {
+            log.warn("Nothing to move at the previous path, downloading: " + koxFile);
+            fileModified(koxFile);
+            return;
+        }
+        Path target = getAbsolutePath(koxFile.getPath());
+        if (!source.startsWith(rootFolder.getAbsolutePath()) || !target.startsWith(rootFolder.getAbsolutePath()))
+            throw new RuntimeException("OMG!!!! Run away");
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            log.warn("Conflict, something already exists at the move target, leaving both untouched: " + koxFile);
+            return;
+        }
+
+        log.info("Moving " + previousPath + " to " + koxFile.getPath());
+        recentUpdates.put(previousPath, new Object());
+        recentMoves.put(previousPath, koxFile.getPath());
+        inProgressPaths.add(source);
+        inProgressPaths.add(target);
+        try {
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source, target);
+            }
+            contentHashIndex.move(previousPath, koxFile.getPath());
+            syncStateStore.moveRecords(previousPath, koxFile.getPath());
+            syncMetrics.increment("local.moves.applied");
+            syncMetrics.add("local.moves.bytes.saved", sizeOf(target));
+            if (koxFile.getFileType() == FileType.DIR)
+                fileSystemWatcher.directoryRemoved(source);
+            else if (isContentChanged(koxFile))
+                saveRegularFile(koxFile);
+        } catch (IOException e) {
+            log.warn("Cannot move " + previousPath + " to " + koxFile.getPath(), e);
+        } finally {
+            inProgressPaths.remove(source);
+            inProgressPaths.remove(target);
+        }
+    }
+
+    /**
+     * @return whether the local content differs from the content of the file at the other side
+     */
+    private boolean isContentChanged(KoxFile koxFile) {
+        String changedChecksum = koxFile.getSource().getChecksum(koxFile);
+        return changedChecksum != null && !changedChecksum.equals(getChecksum(koxFile));
+    }
+
+    /**
+     * @return size of the file or total size of the files below the directory
+     */
+    private long sizeOf(Path path) throws IOException {
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+            return Files.size(path);
+        AtomicLong size = new AtomicLong();
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile())
+                    size.addAndGet(attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size.get();
+    }
+
     private void fileDeleted(KoxFile koxFile) {
         if (koxFile.getFileType() == FileType.REGULAR_FILE)
             deleteRegularFile(koxFile);
@@ -267,6 +693,8 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
         boolean success = Optional.ofNullable(absolutePath.toFile()).map(File::delete).orElse(false);
         if (!success)
             log.warn("Couldn't delete file: " + koxFile);
+        else
+            syncStateStore.removeRecord(koxFile.getPath());
         inProgressPaths.remove(absolutePath);
     }
 
@@ -279,7 +707,7 @@ public class FilesystemSynchronizer implements ISynchronizer, IFileSystemEventPr
             inProgressPaths.add(absolutePath);
             FileUtils.deleteDirectory(absolutePath.toFile()); // VERY, VERY DANGEROUS!!!
             inProgressPaths.remove(absolutePath);
-            recursiveWatcherService.directoryRemoved(absolutePath);
+            fileSystemWatcher.directoryRemoved(absolutePath);
         } catch (IOException e) {
             log.warn(e);
         }
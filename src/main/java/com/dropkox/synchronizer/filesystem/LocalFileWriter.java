@@ -0,0 +1,147 @@
+package com.dropkox.synchronizer.filesystem;
+
+import com.dropkox.core.hash.DigestingChannel;
+import com.dropkox.core.io.BufferPool;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.synchronizer.TransferSource;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes files of the local tree so that readers never see them half-written: the content goes to a temporary file
+ * next to the target, which is then atomically renamed into place. Names of temporary files start with
+ * {@value #TEMP_PREFIX}, the synchronizer ignores them.
+ */
+@Log4j
+class LocalFileWriter {
+
+    static final String TEMP_PREFIX = ".dropkox.";
+
+    private final BufferPool bufferPool;
+    private final SyncMetrics syncMetrics;
+    private volatile long lastBytesPerSecond;
+
+    LocalFileWriter(@NonNull final BufferPool bufferPool, @NonNull final SyncMetrics syncMetrics) {
+        this.bufferPool = bufferPool;
+        this.syncMetrics = syncMetrics;
+        syncMetrics.gauge("local.transfer.bytes-per-second", () -> lastBytesPerSecond);
+    }
+
+    static boolean isTemporary(@NonNull final Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(TEMP_PREFIX);
+    }
+
+    /**
+     * Streams the content through a pooled direct buffer, verifying its length and checksum on the way when the
+     * source knows them. Content which does not match is never moved into place.
+     *
+     * @return number of written bytes
+     */
+    long write(@NonNull final TransferSource source, @NonNull final Path target) throws IOException {
+        return write(target, temporary -> {
+            DigestingChannel content = new DigestingChannel(source.getChannel());
+            ByteBuffer buffer = acquireBuffer();
+            try (FileChannel to = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (content.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        to.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+            verify(source, content, target);
+            return content.getCount();
+        });
+    }
+
+    /**
+     * Copies a local file channel to channel, letting the kernel move the data without passing it through the heap.
+     *
+     * @return number of written bytes
+     */
+    long copy(@NonNull final Path source, @NonNull final Path target) throws IOException {
+        return write(target, temporary -> {
+            try (FileChannel from = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel to = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = from.size();
+                long position = 0;
+                while (position < size) {
+                    position += from.transferTo(position, size - position, to);
+                }
+                return position;
+            }
+        });
+    }
+
+    private long write(Path target, Content content) throws IOException {
+        long start = System.nanoTime();
+        Path temporary = target.resolveSibling(TEMP_PREFIX + target.getFileName() + "." + UUID.randomUUID());
+        try {
+            long bytes = content.writeTo(temporary);
+            moveIntoPlace(temporary, target);
+            record(bytes, System.nanoTime() - start);
+            return bytes;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void verify(TransferSource source, DigestingChannel content, Path target) throws IOException {
+        if (source.getContentLength() != null && source.getContentLength() != content.getCount())
+            throw new IOException(String.format("Expected %d bytes of %s, received %d", source.getContentLength(), target, content.getCount()));
+        if (source.getMd5() != null) {
+            String received = content.getMd5();
+            if (!source.getMd5().equals(received)) {
+                syncMetrics.increment("local.transfer.checksum.mismatches");
+                throw new IOException(String.format("Checksum mismatch of %s, expected %s, received %s", target, source.getMd5(), received));
+            }
+        }
+    }
+
+    private ByteBuffer acquireBuffer() throws IOException {
+        try {
+            return bufferPool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a transfer buffer");
+        }
+    }
+
+    private static void moveIntoPlace(Path temporary, Path target) throws IOException {
+        try {
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            log.debug("Atomic move not supported for " + target + ", replacing it non-atomically");
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void record(long bytes, long nanos) {
+        syncMetrics.add("local.transfer.bytes", bytes);
+        syncMetrics.add("local.transfer.time.ms", TimeUnit.NANOSECONDS.toMillis(nanos));
+        syncMetrics.increment("local.transfer.files");
+        if (nanos > 0)
+            lastBytesPerSecond = (long) (bytes / (nanos / 1e9));
+    }
+
+    @FunctionalInterface
+    private interface Content {
+        long writeTo(Path temporary) throws IOException;
+    }
+}
@@ -0,0 +1,85 @@
+package com.dropkox.synchronizer.filesystem;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks a directory tree on a fork-join pool, forking a task per subdirectory, and collects attributes of every
+ * entry keyed by its path relative to the root. Symbolic links are not followed.
+ */
+@Log4j
+class LocalTreeScanner {
+
+    private static final long PROGRESS_INTERVAL = 50_000;
+
+    private final Path root;
+    private final int parallelism;
+    private final AtomicLong scanned = new AtomicLong();
+
+    LocalTreeScanner(@NonNull final Path root, final int parallelism) {
+        this.root = root;
+        this.parallelism = parallelism;
+    }
+
+    Map<Path, BasicFileAttributes> scan() {
+        Map<Path, BasicFileAttributes> entries = new ConcurrentHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root, entries));
+        } finally {
+            pool.shutdown();
+        }
+        return entries;
+    }
+
+    long getScanned() {
+        return scanned.get();
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final Map<Path, BasicFileAttributes> entries;
+
+        DirectoryTask(Path directory, Map<Path, BasicFileAttributes> entries) {
+            this.directory = directory;
+            this.entries = entries;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isSymbolicLink() || attributes.isOther())
+                        continue;
+                    entries.put(root.relativize(child), attributes);
+                    if (scanned.incrementAndGet() % PROGRESS_INTERVAL == 0)
+                        log.info("Scanned " + scanned.get() + " local entries");
+                    if (attributes.isDirectory())
+                        subdirectories.add(new DirectoryTask(child, entries));
+                }
+            } catch (IOException e) {
+                log.warn("Cannot scan " + directory + ": " + e.getMessage());
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.dropkox.synchronizer.state;
+
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NonNull;
+
+/**
+ * Journaled file event which was accepted but not yet processed by all synchronizers.
+ */
+@Builder
+@Data
+@AllArgsConstructor
+public class PendingOperation {
+
+    private long id;
+    @NonNull
+    private String source;
+    @NonNull
+    private EventType eventType;
+    @NonNull
+    private FileType fileType;
+    @NonNull
+    private String fileId;
+    @NonNull
+    private String path;
+    @NonNull
+    private String name;
+    private Long modificationMillis;
+    private Long size;
+    private String previousPath;
+}
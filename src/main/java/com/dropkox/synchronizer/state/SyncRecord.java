@@ -0,0 +1,26 @@
+package com.dropkox.synchronizer.state;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+
+/**
+ * Last synchronized state of a path on both sides: what the local file and the Drive file looked like when
+ * they were known to have equal content.
+ */
+@Builder(toBuilder = true)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SyncRecord {
+
+    @NonNull
+    private String path;
+    private Long localModifiedMillis;
+    private String localMd5;
+    private String remoteId;
+    private String remoteMd5;
+    private Long remoteModifiedMillis;
+}
@@ -0,0 +1,397 @@
+package com.dropkox.synchronizer.state;
+
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded store of synchronization state: the last processed Drive change token, a {@link SyncRecord} per path
+ * and a journal of {@link PendingOperation}s.
+ * <p>
+ * Every mutation is appended to a checksummed journal and forced to disk before the mutating call returns. Writers
+ * waiting at the same time share one force. On startup the last snapshot is loaded, the journal is replayed up to
+ * the first torn record and both are compacted into a new snapshot, which is swapped in atomically.
+ */
+@Log4j
+@Service
+public class SyncStateStore {
+
+    private static final byte CHANGE_TOKEN = 1;
+    private static final byte RECORD_PUT = 2;
+    private static final byte RECORD_REMOVE = 3;
+    private static final byte OPERATION_BEGIN = 4;
+    private static final byte OPERATION_END = 5;
+    private static final int COMPACTION_THRESHOLD = 100_000;
+
+    @Value("${app.state}")
+    private String stateDir;
+
+    private Path snapshotFile;
+    private Path journalFile;
+    private FileChannel journal;
+    private int journalEntries;
+    private volatile long appendedEntries;
+    private volatile long forcedEntries;
+    private final Object forceLock = new Object();
+
+    private volatile String changeToken;
+    private final Map<String, SyncRecord> records = new ConcurrentHashMap<>();
+    private final Map<Long, PendingOperation> pendingOperations = new ConcurrentSkipListMap<>();
+    private long nextOperationId = 1;
+
+    @PostConstruct
+    public void open() throws IOException {
+        Files.createDirectories(Paths.get(stateDir));
+        snapshotFile = Paths.get(stateDir, "sync-state.snapshot");
+        journalFile = Paths.get(stateDir, "sync-state.journal");
+
+        replay(snapshotFile);
+        replay(journalFile);
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        compact();
+        log.info(String.format("Sync state loaded: %d records, %d pending operations", records.size(), pendingOperations.size()));
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        compact();
+        journal.close();
+    }
+
+    public String getChangeToken() {
+        return changeToken;
+    }
+
+    public void setChangeToken(@NonNull final String changeToken) {
+        long entry;
+        synchronized (this) {
+            entry = append(CHANGE_TOKEN, out -> out.writeUTF(changeToken));
+            this.changeToken = changeToken;
+        }
+        awaitForced(entry);
+    }
+
+    public SyncRecord getRecord(@NonNull final String path) {
+        return records.get(path);
+    }
+
+    public Collection<SyncRecord> getRecords() {
+        return records.values();
+    }
+
+    public void putRecord(@NonNull final SyncRecord record) {
+        long entry;
+        synchronized (this) {
+            entry = appendRecord(record);
+        }
+        awaitForced(entry);
+    }
+
+    public void removeRecord(@NonNull final String path) {
+        long entry;
+        synchronized (this) {
+            if (!records.containsKey(path))
+                return;
+            entry = appendRemoval(path);
+        }
+        awaitForced(entry);
+    }
+
+    /**
+     * Moves the record of the path, and records of everything below it, to the new path.
+     *
+     * @return number of moved records
+     */
+    public int moveRecords(@NonNull final String fromPath, @NonNull final String toPath) {
+        List<SyncRecord> moved = new ArrayList<>();
+        long entry;
+        synchronized (this) {
+            for (SyncRecord record : records.values()) {
+                String path = record.getPath();
+                if (path.equals(fromPath) || path.startsWith(fromPath + "/"))
+                    moved.add(record);
+            }
+            for (SyncRecord record : moved) {
+                appendRemoval(record.getPath());
+                appendRecord(record.toBuilder().path(toPath + record.getPath().substring(fromPath.length())).build());
+            }
+            entry = appendedEntries;
+        }
+        awaitForced(entry);
+        return moved.size();
+    }
+
+    /**
+     * Journals the operation before it is executed.
+     *
+     * @return ID under which the operation has been journaled
+     */
+    public long beginOperation(@NonNull final PendingOperation operation) {
+        long entry;
+        synchronized (this) {
+            operation.setId(nextOperationId++);
+            entry = append(OPERATION_BEGIN, out -> writeOperation(out, operation));
+            pendingOperations.put(operation.getId(), operation);
+        }
+        awaitForced(entry);
+        return operation.getId();
+    }
+
+    public void completeOperation(final long operationId) {
+        long entry;
+        synchronized (this) {
+            entry = append(OPERATION_END, out -> out.writeLong(operationId));
+            pendingOperations.remove(operationId);
+        }
+        awaitForced(entry);
+    }
+
+    /**
+     * @return operations begun but not completed, in the order they were begun
+     */
+    public List<PendingOperation> getPendingOperations() {
+        return new ArrayList<>(pendingOperations.values());
+    }
+
+    private long appendRecord(SyncRecord record) {
+        long entry = append(RECORD_PUT, out -> writeRecord(out, record));
+        records.put(record.getPath(), record);
+        return entry;
+    }
+
+    private long appendRemoval(String path) {
+        long entry = append(RECORD_REMOVE, out -> out.writeUTF(path));
+        records.remove(path);
+        return entry;
+    }
+
+    /**
+     * Writes the entry without forcing it, the caller holds the lock of the store.
+     *
+     * @return sequence number of the entry to await with {@link #awaitForced(long)}
+     */
+    private long append(byte type, EntryWriter writer) {
+        try {
+            writeFully(journal, encode(type, writer));
+            long entry = ++appendedEntries;
+            if (++journalEntries >= COMPACTION_THRESHOLD)
+                compact();
+            return entry;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write sync state journal", e);
+        }
+    }
+
+    /**
+     * Forces the journal unless a writer which came earlier already forced the entry along with its own. Only one
+     * force runs at a time, writers appending meanwhile are covered by the next one.
+     */
+    private void awaitForced(long entry) {
+        synchronized (forceLock) {
+            if (forcedEntries >= entry)
+                return;
+            long appended = appendedEntries;
+            try {
+                journal.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write sync state journal", e);
+            }
+            forcedEntries = appended;
+        }
+    }
+
+    private synchronized void compact() throws IOException {
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel snapshot = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (changeToken != null)
+                writeFully(snapshot, encode(CHANGE_TOKEN, out -> out.writeUTF(changeToken)));
+            for (SyncRecord record : records.values()) {
+                writeFully(snapshot, encode(RECORD_PUT, out -> writeRecord(out, record)));
+            }
+            for (PendingOperation operation : pendingOperations.values()) {
+                writeFully(snapshot, encode(OPERATION_BEGIN, out -> writeOperation(out, operation)));
+            }
+            snapshot.force(true);
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.truncate(0);
+        journal.position(0);
+        journal.force(true);
+        journalEntries = 0;
+        forcedEntries = appendedEntries;
+    }
+
+    private void replay(Path file) throws IOException {
+        if (Files.notExists(file))
+            return;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+            while (in.available() > 0) {
+                if (!replayEntry(in)) {
+                    log.warn("Torn entry at the end of " + file + ", ignoring the rest");
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean replayEntry(DataInputStream in) throws IOException {
+        if (in.available() < Integer.BYTES + Long.BYTES)
+            return false;
+        int length = in.readInt();
+        long checksum = in.readLong();
+        if (length <= 0 || in.available() < length)
+            return false;
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != checksum)
+            return false;
+
+        DataInputStream entry = new DataInputStream(new ByteArrayInputStream(payload));
+        switch (entry.readByte()) {
+            case CHANGE_TOKEN:
+                changeToken = entry.readUTF();
+                break;
+            case RECORD_PUT:
+                SyncRecord record = readRecord(entry);
+                records.put(record.getPath(), record);
+                break;
+            case RECORD_REMOVE:
+                records.remove(entry.readUTF());
+                break;
+            case OPERATION_BEGIN:
+                PendingOperation operation = readOperation(entry);
+                pendingOperations.put(operation.getId(), operation);
+                nextOperationId = Math.max(nextOperationId, operation.getId() + 1);
+                break;
+            case OPERATION_END:
+                pendingOperations.remove(entry.readLong());
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer encode(byte type, EntryWriter writer) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeByte(type);
+        writer.write(payload);
+        payload.flush();
+        byte[] bytes = payloadBytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + bytes.length);
+        entry.putInt(bytes.length).putLong(crc.getValue()).put(bytes);
+        entry.flip();
+        return entry;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, SyncRecord record) throws IOException {
+        out.writeUTF(record.getPath());
+        writeNullableLong(out, record.getLocalModifiedMillis());
+        writeNullableString(out, record.getLocalMd5());
+        writeNullableString(out, record.getRemoteId());
+        writeNullableString(out, record.getRemoteMd5());
+        writeNullableLong(out, record.getRemoteModifiedMillis());
+    }
+
+    private static SyncRecord readRecord(DataInputStream in) throws IOException {
+        return SyncRecord.builder()
+                .path(in.readUTF())
+                .localModifiedMillis(readNullableLong(in))
+                .localMd5(readNullableString(in))
+                .remoteId(readNullableString(in))
+                .remoteMd5(readNullableString(in))
+                .remoteModifiedMillis(readNullableLong(in))
+                .build();
+    }
+
+    private static void writeOperation(DataOutputStream out, PendingOperation operation) throws IOException {
+        out.writeLong(operation.getId());
+        out.writeUTF(operation.getSource());
+        out.writeUTF(operation.getEventType().name());
+        out.writeUTF(operation.getFileType().name());
+        out.writeUTF(operation.getFileId());
+        out.writeUTF(operation.getPath());
+        out.writeUTF(operation.getName());
+        writeNullableLong(out, operation.getModificationMillis());
+        writeNullableLong(out, operation.getSize());
+        writeNullableString(out, operation.getPreviousPath());
+    }
+
+    private static PendingOperation readOperation(DataInputStream in) throws IOException {
+        return PendingOperation.builder()
+                .id(in.readLong())
+                .source(in.readUTF())
+                .eventType(EventType.valueOf(in.readUTF()))
+                .fileType(FileType.valueOf(in.readUTF()))
+                .fileId(in.readUTF())
+                .path(in.readUTF())
+                .name(in.readUTF())
+                .modificationMillis(readNullableLong(in))
+                .size(readNullableLong(in))
+                .previousPath(readNullableString(in))
+                .build();
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeLong(value);
+    }
+
+    private static Long readNullableLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    @FunctionalInterface
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
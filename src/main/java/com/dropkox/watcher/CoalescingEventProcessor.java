@@ -0,0 +1,246 @@
+package com.dropkox.watcher;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds filesystem events of a path until the path stays quiet for the configured window and passes on only
+ * the net operation of the whole burst:
+ * <ul>
+ * <li>create followed by modifications is a create,</li>
+ * <li>create followed by delete is nothing,</li>
+ * <li>delete followed by create (an editor replacing the file) is a modification, of a directory a create, so
+ * that its content is imported again.</li>
+ * </ul>
+ * Paths are passed on in the order they first appeared. An event rejected downstream because the synchronization
+ * queue is full is held again and retried after another quiet window. While {@link #hold() held}, nothing is passed
+ * on and a move is kept as a delete and a create.
+ */
+@Log4j
+public class CoalescingEventProcessor implements IFileSystemEventProcessor {
+
+    private final IFileSystemEventProcessor delegate;
+    private final long quietWindowMillis;
+    private final SyncMetrics syncMetrics;
+    private final ScheduledExecutorService flusher;
+
+    private final Map<Path, PendingEvent> pending = new LinkedHashMap<>();
+    private volatile boolean held;
+
+    public CoalescingEventProcessor(@NonNull final IFileSystemEventProcessor delegate, final long quietWindowMillis,
+                                    @NonNull final SyncMetrics syncMetrics) {
+        this.delegate = delegate;
+        this.quietWindowMillis = quietWindowMillis;
+        this.syncMetrics = syncMetrics;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watcher-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tick = Math.max(10, quietWindowMillis / 4);
+        flusher.scheduleWithFixedDelay(this::flushQuiet, tick, tick, TimeUnit.MILLISECONDS);
+        syncMetrics.gauge("watcher.events.pending", this::pendingCount);
+    }
+
+    @Override
+    public void processFilesystemEvent(@NonNull final Path path, @NonNull final EventType eventType, @NonNull final FileType fileType) {
+        syncMetrics.increment("watcher.events.received");
+        PendingEvent replaced = null;
+        synchronized (pending) {
+            PendingEvent previous = pending.get(path);
+            if (previous == null) {
+                pending.put(path, new PendingEvent(path, eventType, fileType, System.currentTimeMillis()));
+                return;
+            }
+            if (previous.fileType != fileType) {
+                pending.remove(path);
+                replaced = previous;
+            } else {
+                EventType folded = fold(previous.eventType, eventType, fileType);
+                syncMetrics.increment("watcher.events.folded");
+                if (folded == null) {
+                    pending.remove(path);
+                } else {
+                    previous.eventType = folded;
+                    previous.lastSeenMillis = System.currentTimeMillis();
+                }
+                return;
+            }
+        }
+        // a file replaced by a directory or the other way around: both events have to be passed on
+        emit(replaced);
+        synchronized (pending) {
+            pending.put(path, new PendingEvent(path, eventType, fileType, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Passes the move on right away and takes the events held for the moved paths along to the new ones. A file
+     * created and moved within the quiet window is still just a create, at its new path.
+     */
+    @Override
+    public void processFilesystemMove(@NonNull final Path fromPath, @NonNull final Path toPath, @NonNull final FileType fileType) {
+        syncMetrics.increment("watcher.events.received");
+        synchronized (pending) {
+            PendingEvent previous = pending.get(fromPath);
+            boolean created = previous != null && previous.eventType == EventType.CREATE && previous.fileType == fileType;
+            movePending(fromPath, toPath);
+            if (created) {
+                syncMetrics.increment("watcher.events.folded");
+                return;
+            }
+        }
+        if (held) {
+            holdMove(fromPath, toPath, fileType);
+            return;
+        }
+        try {
+            delegate.processFilesystemMove(fromPath, toPath, fileType);
+            syncMetrics.increment("watcher.events.emitted");
+        } catch (RejectedExecutionException e) {
+            syncMetrics.increment("watcher.events.rejected");
+            holdMove(fromPath, toPath, fileType);
+        } catch (RuntimeException e) {
+            log.warn("Processing of move of " + fromPath + " to " + toPath + " failed", e);
+        }
+    }
+
+    /**
+     * Stops passing events on until {@link #release()}, e.g. while the startup reconciliation works on the tree.
+     */
+    public void hold() {
+        held = true;
+    }
+
+    /**
+     * Passes on the events held meanwhile, each once its path is quiet.
+     */
+    public void release() {
+        held = false;
+    }
+
+    /**
+     * Passes on all held events and stops the background flushing.
+     */
+    public void close() {
+        flusher.shutdown();
+        List<PendingEvent> remaining;
+        synchronized (pending) {
+            remaining = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        remaining.forEach(this::emit);
+    }
+
+    /**
+     * @return net operation of two consecutive events or null when they cancel out
+     */
+    static EventType fold(@NonNull final EventType previous, @NonNull final EventType next, @NonNull final FileType fileType) {
+        if (previous == EventType.CREATE)
+            return next == EventType.DELETE ? null : EventType.CREATE;
+        if (next == EventType.DELETE)
+            return EventType.DELETE;
+        if (previous == EventType.DELETE)
+            return fileType == FileType.DIR ? EventType.CREATE : EventType.MODIFY;
+        return EventType.MODIFY;
+    }
+
+    private void flushQuiet() {
+        if (held)
+            return;
+        long now = System.currentTimeMillis();
+        List<PendingEvent> quiet = new ArrayList<>();
+        synchronized (pending) {
+            Iterator<PendingEvent> iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+                PendingEvent event = iterator.next();
+                if (now - event.lastSeenMillis >= quietWindowMillis) {
+                    quiet.add(event);
+                    iterator.remove();
+                }
+            }
+        }
+        quiet.forEach(this::emit);
+    }
+
+    private void emit(PendingEvent event) {
+        try {
+            delegate.processFilesystemEvent(event.path, event.eventType, event.fileType);
+            syncMetrics.increment("watcher.events.emitted");
+        } catch (RejectedExecutionException e) {
+            syncMetrics.increment("watcher.events.rejected");
+            hold(event);
+        } catch (RuntimeException e) {
+            log.warn("Processing of " + event.path + " failed", e);
+        }
+    }
+
+    private void holdMove(Path fromPath, Path toPath, FileType fileType) {
+        long now = System.currentTimeMillis();
+        hold(new PendingEvent(fromPath, EventType.DELETE, fileType, now));
+        hold(new PendingEvent(toPath, EventType.CREATE, fileType, now));
+    }
+
+    private void hold(PendingEvent rejected) {
+        rejected.lastSeenMillis = System.currentTimeMillis();
+        synchronized (pending) {
+            PendingEvent newer = pending.get(rejected.path);
+            if (newer == null) {
+                pending.put(rejected.path, rejected);
+            } else if (newer.fileType == rejected.fileType) {
+                EventType folded = fold(rejected.eventType, newer.eventType, newer.fileType);
+                if (folded == null)
+                    pending.remove(rejected.path);
+                else
+                    newer.eventType = folded;
+            } else {
+                log.warn("Dropping rejected " + rejected.eventType + " of " + rejected.path + ", its type has changed since");
+            }
+        }
+    }
+
+    private void movePending(Path fromPath, Path toPath) {
+        List<PendingEvent> moved = new ArrayList<>();
+        Iterator<PendingEvent> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            PendingEvent event = iterator.next();
+            if (event.path.startsWith(fromPath)) {
+                moved.add(event);
+                iterator.remove();
+            }
+        }
+        for (PendingEvent event : moved) {
+            Path path = toPath.resolve(fromPath.relativize(event.path));
+            pending.put(path, new PendingEvent(path, event.eventType, event.fileType, event.lastSeenMillis));
+        }
+    }
+
+    private int pendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    @AllArgsConstructor
+    private static class PendingEvent {
+        private final Path path;
+        private EventType eventType;
+        private final FileType fileType;
+        private long lastSeenMillis;
+    }
+}
@@ -0,0 +1,115 @@
+package com.dropkox.watcher;
+
+import com.dropkox.model.EventType;
+import lombok.NonNull;
+import lombok.Value;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last known size, modification time and type of the direct children of a watched directory. Diffing two
+ * snapshots tells which events were lost when the watch queue overflowed.
+ */
+class DirectorySnapshot {
+
+    @Value
+    static class Entry {
+        long size;
+        long modifiedMillis;
+        boolean directory;
+        /**
+         * Identity of the file which survives a rename, the inode on Unix, or null when the filesystem has none.
+         */
+        Object fileKey;
+
+        static Entry of(BasicFileAttributes attributes) {
+            return new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.isDirectory(), attributes.fileKey());
+        }
+    }
+
+    @Value
+    static class Change {
+        String name;
+        EventType eventType;
+        boolean directory;
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    static DirectorySnapshot take(@NonNull final Path directory) throws IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (Path child : children) {
+                snapshot.update(child);
+            }
+        }
+        return snapshot;
+    }
+
+    void put(@NonNull final Path child, @NonNull final BasicFileAttributes attributes) {
+        entries.put(child.getFileName().toString(), Entry.of(attributes));
+    }
+
+    /**
+     * Refreshes the entry of the child from the filesystem, forgetting it when the child no longer exists.
+     */
+    void update(@NonNull final Path child) {
+        try {
+            put(child, Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+        } catch (NoSuchFileException e) {
+            entries.remove(child.getFileName().toString());
+        } catch (IOException e) {
+            // unreadable entries are left as they were, a later rescan will pick them up
+        }
+    }
+
+    Entry get(@NonNull final String name) {
+        return entries.get(name);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    List<String> getDirectoryNames() {
+        List<String> names = new ArrayList<>();
+        entries.forEach((name, entry) -> {
+            if (entry.isDirectory())
+                names.add(name);
+        });
+        return names;
+    }
+
+    /**
+     * @return changes which turn this snapshot into the current one
+     */
+    List<Change> diff(@NonNull final DirectorySnapshot current) {
+        List<Change> changes = new ArrayList<>();
+        entries.forEach((name, entry) -> {
+            Entry now = current.entries.get(name);
+            if (now == null) {
+                changes.add(new Change(name, EventType.DELETE, entry.isDirectory()));
+            } else if (now.isDirectory() != entry.isDirectory()) {
+                changes.add(new Change(name, EventType.DELETE, entry.isDirectory()));
+                changes.add(new Change(name, EventType.CREATE, now.isDirectory()));
+            } else if (!now.isDirectory() && !now.equals(entry)) {
+                changes.add(new Change(name, EventType.MODIFY, false));
+            }
+        });
+        current.entries.forEach((name, entry) -> {
+            if (!entries.containsKey(name))
+                changes.add(new Change(name, EventType.CREATE, entry.isDirectory()));
+        });
+        return changes;
+    }
+}
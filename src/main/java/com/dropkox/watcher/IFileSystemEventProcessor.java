@@ -8,4 +8,13 @@ import java.nio.file.Path;
 
 public interface IFileSystemEventProcessor {
     void processFilesystemEvent(@NonNull Path path, @NonNull EventType eventType, @NonNull FileType fileType);
+
+    /**
+     * Handles a file or directory which was moved or renamed within the tree. Processors which do not track
+     * moves see it as a delete of the old path followed by a create of the new one.
+     */
+    default void processFilesystemMove(@NonNull Path fromPath, @NonNull Path toPath, @NonNull FileType fileType) {
+        processFilesystemEvent(fromPath, EventType.DELETE, fileType);
+        processFilesystemEvent(toPath, EventType.CREATE, fileType);
+    }
 }
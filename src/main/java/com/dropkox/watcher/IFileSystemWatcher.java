@@ -0,0 +1,18 @@
+package com.dropkox.watcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Source of filesystem events of a directory tree, passed on to an {@link IFileSystemEventProcessor}.
+ */
+public interface IFileSystemWatcher {
+    void init() throws IOException;
+
+    void cleanup();
+
+    /**
+     * Forgets the directory and all directories below it, which were removed by the application itself.
+     */
+    void directoryRemoved(Path absolutePath);
+}
@@ -0,0 +1,142 @@
+package com.dropkox.watcher;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs a delete and a create of the same file into a move. The file is recognized by its file key (the inode on
+ * Unix) together with type, size and modification time, which a rename keeps. The watcher reports both halves
+ * separately and in either order, so each of them is held for a short window; a half left unpaired is passed on
+ * as it was. Entries without a file key, e.g. on filesystems which have none, are passed on right away.
+ */
+@Log4j
+class MoveDetector {
+
+    private final IFileSystemEventProcessor processor;
+    private final long windowMillis;
+    private final SyncMetrics syncMetrics;
+    private final ScheduledExecutorService expiry;
+
+    private final Map<Object, HeldEvent> held = new HashMap<>();
+
+    MoveDetector(@NonNull final IFileSystemEventProcessor processor, final long windowMillis, @NonNull final SyncMetrics syncMetrics) {
+        this.processor = processor;
+        this.windowMillis = windowMillis;
+        this.syncMetrics = syncMetrics;
+        this.expiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watcher-move-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param entry last known state of the deleted file or null when unknown
+     */
+    void deleted(@NonNull final Path path, @NonNull final FileType fileType, final DirectorySnapshot.Entry entry) {
+        hold(path, EventType.DELETE, fileType, entry);
+    }
+
+    /**
+     * @param entry state of the created file or null when unknown
+     */
+    void created(@NonNull final Path path, @NonNull final FileType fileType, final DirectorySnapshot.Entry entry) {
+        hold(path, EventType.CREATE, fileType, entry);
+    }
+
+    /**
+     * Passes on all held events and stops the expiry thread.
+     */
+    void close() {
+        expiry.shutdownNow();
+        List<HeldEvent> remaining;
+        synchronized (held) {
+            remaining = new ArrayList<>(held.values());
+            held.clear();
+        }
+        remaining.forEach(this::passOn);
+    }
+
+    private void hold(Path path, EventType eventType, FileType fileType, DirectorySnapshot.Entry entry) {
+        if (windowMillis <= 0 || entry == null || entry.getFileKey() == null) {
+            processor.processFilesystemEvent(path, eventType, fileType);
+            return;
+        }
+        HeldEvent event = new HeldEvent(path, eventType, fileType, entry);
+        HeldEvent counterpart;
+        synchronized (held) {
+            counterpart = held.remove(entry.getFileKey());
+            if (counterpart == null || !event.completes(counterpart)) {
+                held.put(entry.getFileKey(), event);
+                schedule(event);
+            }
+        }
+        if (counterpart == null)
+            return;
+        if (!event.completes(counterpart)) {
+            // another file took over the key of a deleted one, the earlier event stays what it was
+            passOn(counterpart);
+            return;
+        }
+        HeldEvent delete = eventType == EventType.DELETE ? event : counterpart;
+        HeldEvent create = eventType == EventType.CREATE ? event : counterpart;
+        syncMetrics.increment("watcher.moves");
+        log.debug("Detected move of " + delete.path + " to " + create.path);
+        processor.processFilesystemMove(delete.path, create.path, fileType);
+    }
+
+    private void schedule(HeldEvent event) {
+        try {
+            expiry.schedule(() -> expire(event), windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            expire(event);
+        }
+    }
+
+    private void expire(HeldEvent event) {
+        boolean removed;
+        synchronized (held) {
+            removed = held.remove(event.entry.getFileKey(), event);
+        }
+        if (removed)
+            passOn(event);
+    }
+
+    private void passOn(HeldEvent event) {
+        try {
+            processor.processFilesystemEvent(event.path, event.eventType, event.fileType);
+        } catch (RuntimeException e) {
+            log.warn("Processing of " + event.path + " failed", e);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class HeldEvent {
+        private final Path path;
+        private final EventType eventType;
+        private final FileType fileType;
+        private final DirectorySnapshot.Entry entry;
+
+        private boolean completes(HeldEvent other) {
+            return other.eventType != eventType
+                    && other.fileType == fileType
+                    && !other.path.equals(path)
+                    && (fileType == FileType.DIR || (other.entry.getSize() == entry.getSize()
+                    && other.entry.getModifiedMillis() == entry.getModifiedMillis()));
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.dropkox.watcher;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory tree by periodic snapshots, for filesystems such as NFS or FUSE mounts where the watch service
+ * delivers nothing. A cycle lists again only directories which modification time changed, which covers entries
+ * being created, deleted or renamed; every {@value #FULL_CYCLE_EVERY}th cycle lists all directories to catch files
+ * modified in place. The interval drops to the minimum when a cycle finds changes and doubles up to the maximum
+ * while the tree stays idle.
+ */
+@Log4j
+public class PollingWatcherService implements IFileSystemWatcher {
+
+    private static final int FULL_CYCLE_EVERY = 10;
+
+    private final IFileSystemEventProcessor fileSystemEventProcessor;
+    private final File rootFolder;
+    private final SyncMetrics syncMetrics;
+    private final WatcherSettings settings;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    // accessed by the polling thread only
+    private final Map<Path, DirectoryState> directories = new HashMap<>();
+    private long cycles;
+    private long stats;
+    private long listings;
+
+    private ScheduledExecutorService scheduler;
+    private MoveDetector moveDetector;
+    private volatile long intervalMillis;
+    private volatile long lastCycleMillis;
+    private volatile long lastCycleCpuMillis;
+    private volatile int directoriesCount;
+    private final CompletableFuture<Void> initialSnapshot = new CompletableFuture<>();
+
+    public PollingWatcherService(@NonNull final IFileSystemEventProcessor fileSystemEventProcessor, @NonNull final File rootFolder,
+                                 @NonNull final SyncMetrics syncMetrics, @NonNull final WatcherSettings settings) {
+        this.fileSystemEventProcessor = fileSystemEventProcessor;
+        this.rootFolder = rootFolder;
+        this.syncMetrics = syncMetrics;
+        this.settings = settings;
+        this.intervalMillis = settings.getPollIntervalMillis();
+    }
+
+    @Override
+    public void init() throws IOException {
+        if (!rootFolder.isDirectory()) {
+            throw new RuntimeException("folder " + rootFolder + " does not exist or is not a directory");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watcher-polling");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // both halves of a move are found by one cycle, the window has to outlast it
+        long moveWindowMillis = settings.getMoveWindowMillis() <= 0 ? 0 : Math.max(settings.getMoveWindowMillis(), settings.getPollIntervalMillis());
+        moveDetector = new MoveDetector(fileSystemEventProcessor, moveWindowMillis, syncMetrics);
+        syncMetrics.gauge("watcher.polling.interval.ms", () -> intervalMillis);
+        syncMetrics.gauge("watcher.polling.last.cycle.ms", () -> lastCycleMillis);
+        syncMetrics.gauge("watcher.polling.last.cpu.ms", () -> lastCycleCpuMillis);
+        syncMetrics.gauge("watcher.polling.directories", () -> directoriesCount);
+        scheduler.execute(() -> {
+            long start = System.nanoTime();
+            track(rootFolder.toPath());
+            directoriesCount = directories.size();
+            log.info(String.format("Took initial snapshot of %d directories under %s in %d ms", directories.size(),
+                    rootFolder, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            initialSnapshot.complete(null);
+            schedule();
+        });
+    }
+
+    /**
+     * @return future completed when the initial snapshot of the whole tree is taken
+     */
+    public CompletableFuture<Void> getInitialSnapshot() {
+        return initialSnapshot;
+    }
+
+    @Override
+    public void cleanup() {
+        scheduler.shutdownNow();
+        moveDetector.close();
+    }
+
+    @Override
+    public void directoryRemoved(@NonNull final Path absolutePath) {
+        scheduler.execute(() -> forget(absolutePath));
+    }
+
+    private void schedule() {
+        if (!scheduler.isShutdown())
+            scheduler.schedule(this::cycle, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cycle() {
+        long start = System.nanoTime();
+        long cpuStart = cpuTime();
+        long statsBefore = stats;
+        long listingsBefore = listings;
+        boolean full = ++cycles % FULL_CYCLE_EVERY == 0;
+        int changes = 0;
+        try {
+            for (Path directory : new ArrayList<>(directories.keySet())) {
+                if (directories.containsKey(directory))
+                    changes += poll(directory, full);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Polling of " + rootFolder + " failed", e);
+        } finally {
+            intervalMillis = changes > 0 ? settings.getPollIntervalMillis() : Math.min(intervalMillis * 2, settings.getMaxPollIntervalMillis());
+            lastCycleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            lastCycleCpuMillis = TimeUnit.NANOSECONDS.toMillis(cpuTime() - cpuStart);
+            directoriesCount = directories.size();
+            syncMetrics.increment("watcher.polling.cycles");
+            syncMetrics.add("watcher.polling.events", changes);
+            syncMetrics.add("watcher.polling.stats", stats - statsBefore);
+            syncMetrics.add("watcher.polling.listings", listings - listingsBefore);
+            syncMetrics.add("watcher.polling.time.ms", lastCycleMillis);
+            syncMetrics.add("watcher.polling.cpu.ms", lastCycleCpuMillis);
+            schedule();
+        }
+    }
+
+    /**
+     * @return number of emitted events
+     */
+    private int poll(Path directory, boolean full) {
+        DirectoryState state = directories.get(directory);
+        long modifiedMillis;
+        try {
+            stats++;
+            modifiedMillis = Files.getLastModifiedTime(directory, LinkOption.NOFOLLOW_LINKS).toMillis();
+        } catch (IOException e) {
+            // a deleted directory is reported by its parent
+            return 0;
+        }
+        if (!full && modifiedMillis == state.modifiedMillis)
+            return 0;
+
+        DirectorySnapshot current;
+        try {
+            current = list(directory);
+        } catch (IOException e) {
+            log.warn("Cannot list " + directory + ": " + e.getMessage());
+            return 0;
+        }
+        state.modifiedMillis = modifiedMillis;
+        DirectorySnapshot previous = state.snapshot;
+        state.snapshot = current;
+
+        int emitted = 0;
+        for (DirectorySnapshot.Change change : previous.diff(current)) {
+            Path child = directory.resolve(change.getName());
+            Path relativePath = rootFolder.toPath().relativize(child);
+            FileType fileType = change.isDirectory() ? FileType.DIR : FileType.REGULAR_FILE;
+            if (change.getEventType() == EventType.DELETE)
+                moveDetector.deleted(relativePath, fileType, previous.get(change.getName()));
+            else if (change.getEventType() == EventType.CREATE)
+                moveDetector.created(relativePath, fileType, current.get(change.getName()));
+            else
+                fileSystemEventProcessor.processFilesystemEvent(relativePath, change.getEventType(), fileType);
+            emitted++;
+            if (change.isDirectory() && change.getEventType() == EventType.DELETE)
+                forget(child);
+            else if (change.isDirectory() && change.getEventType() == EventType.CREATE)
+                track(child);
+        }
+        return emitted;
+    }
+
+    /**
+     * Takes snapshots of the directory and all directories below it without emitting any events.
+     */
+    private void track(Path directory) {
+        Deque<Path> pending = new ArrayDeque<>();
+        pending.push(directory);
+        while (!pending.isEmpty()) {
+            Path next = pending.pop();
+            try {
+                stats++;
+                long modifiedMillis = Files.getLastModifiedTime(next, LinkOption.NOFOLLOW_LINKS).toMillis();
+                DirectorySnapshot snapshot = list(next);
+                directories.put(next, new DirectoryState(modifiedMillis, snapshot));
+                snapshot.getDirectoryNames().forEach(name -> pending.push(next.resolve(name)));
+            } catch (IOException e) {
+                log.warn("Cannot list " + next + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void forget(Path directory) {
+        directories.keySet().removeIf(path -> path.startsWith(directory));
+    }
+
+    private DirectorySnapshot list(Path directory) throws IOException {
+        DirectorySnapshot snapshot = DirectorySnapshot.take(directory);
+        listings++;
+        stats += snapshot.size();
+        return snapshot;
+    }
+
+    private long cpuTime() {
+        return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    @AllArgsConstructor
+    private static class DirectoryState {
+        private long modifiedMillis;
+        private DirectorySnapshot snapshot;
+    }
+}
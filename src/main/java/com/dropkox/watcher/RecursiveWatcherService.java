@@ -1,11 +1,11 @@
 package com.dropkox.watcher;
 
 
+import com.dropkox.core.concurrent.KeyOrderedExecutor;
+import com.dropkox.core.metrics.SyncMetrics;
 import com.dropkox.model.EventType;
 import com.dropkox.model.FileType;
-import com.sun.nio.file.SensitivityWatchEventModifier;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j;
 
@@ -13,21 +13,20 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.Consumer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
@@ -36,106 +35,238 @@ import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 /* Source http://fabriziofortino.github.io/articles/recursive-watchservice-java8/ */
 
+/**
+ * Watches a directory tree. A single poller thread only drains watch keys; the events are handled on a pool of
+ * handler threads, one after another for the same directory, so a slow event processor does not stall watching
+ * and a rescan never runs next to events of the directory it replaces the snapshot of.
+ * Directories are registered in the background, events of the already registered ones are served meanwhile.
+ * Directories beyond the watch limit are polled periodically instead.
+ */
 @Log4j
-@RequiredArgsConstructor
-public class RecursiveWatcherService {
+public class RecursiveWatcherService implements IFileSystemWatcher {
 
-    @NonNull
-    private IFileSystemEventProcessor fileSystemEventProcessor;
-    @NonNull
-    private File rootFolder;
+    private static final int HANDLER_CAPACITY = 10_000;
+
+    private final IFileSystemEventProcessor fileSystemEventProcessor;
+    private final File rootFolder;
+    private final SyncMetrics syncMetrics;
+    private final WatcherSettings settings;
     private WatchService watcher;
 
-    private ExecutorService executor;
-    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private ExecutorService poller;
+    private ScheduledExecutorService coldPoller;
+    private KeyOrderedExecutor handlers;
+    private WatchRegistrar registrar;
+    private MoveDetector moveDetector;
+    private final WatchKeyRegistry keys = new WatchKeyRegistry();
+    private volatile long lastRescanMillis;
+    private volatile long registrationMillis;
+    private CompletableFuture<Void> registration;
+
+    public RecursiveWatcherService(@NonNull final IFileSystemEventProcessor fileSystemEventProcessor, @NonNull final File rootFolder,
+                                   @NonNull final SyncMetrics syncMetrics) {
+        this(fileSystemEventProcessor, rootFolder, syncMetrics, WatcherSettings.DEFAULT);
+    }
+
+    public RecursiveWatcherService(@NonNull final IFileSystemEventProcessor fileSystemEventProcessor, @NonNull final File rootFolder,
+                                   @NonNull final SyncMetrics syncMetrics, @NonNull final WatcherSettings settings) {
+        this.fileSystemEventProcessor = fileSystemEventProcessor;
+        this.rootFolder = rootFolder;
+        this.syncMetrics = syncMetrics;
+        this.settings = settings;
+    }
 
+    @Override
     @PostConstruct
     public void init() throws IOException {
+        if (!rootFolder.isDirectory()) {
+            throw new RuntimeException("folder " + rootFolder + " does not exist or is not a directory");
+        }
         watcher = FileSystems.getDefault().newWatchService();
-        executor = Executors.newSingleThreadExecutor();
+        syncMetrics.gauge("watcher.rescan.last.ms", () -> lastRescanMillis);
+        syncMetrics.gauge("watcher.registration.ms", () -> registrationMillis);
+        syncMetrics.gauge("watcher.directories.watched", keys::size);
+        syncMetrics.gauge("watcher.directories.polled", keys::polledSize);
+        poller = Executors.newSingleThreadExecutor(daemonThreadFactory("watcher-poller"));
+        coldPoller = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("watcher-cold-poller"));
+        handlers = new KeyOrderedExecutor("watcher.handlers", settings.getHandlerThreads(), HANDLER_CAPACITY, syncMetrics);
+        moveDetector = new MoveDetector(fileSystemEventProcessor, settings.getMoveWindowMillis(), syncMetrics);
+        registrar = new WatchRegistrar(watcher, keys, settings.getMaxWatches(), settings.getRegistrationThreads(), syncMetrics);
         startRecursiveWatcher();
     }
 
+    @Override
     @PreDestroy
     @SneakyThrows(IOException.class)
     public void cleanup() {
         watcher.close();
-        executor.shutdown();
+        poller.shutdownNow();
+        coldPoller.shutdownNow();
+        registrar.shutdown();
+        handlers.shutdown();
+        moveDetector.close();
     }
 
     @SuppressWarnings("unchecked")
-    private void startRecursiveWatcher() throws IOException {
-
-        Consumer<Path> register = p -> {
-            if (!p.toFile().exists() || !p.toFile().isDirectory()) {
-                throw new RuntimeException("folder " + p + " does not exist or is not a directory");
-            }
-            try {
-                Files.walkFileTree(p, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        log.info("Registering " + dir + " in watcher service");
-                        WatchKey watchKey = dir.register(watcher, new WatchEvent.Kind[]{ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY}, SensitivityWatchEventModifier.HIGH);
-                        keys.put(watchKey, dir);
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-        };
+    private void startRecursiveWatcher() {
+        Path root = rootFolder.toPath();
+        long start = System.nanoTime();
+        log.info("Registering " + root + " in watcher service");
+        registration = registrar.registerAsync(root).whenComplete((ignored, e) -> {
+            registrationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (e != null)
+                log.warn("Registration of " + root + " in watcher service failed", e);
+            else
+                log.info(String.format("Registered %s in watcher service in %d ms: %d directories watched, %d polled",
+                        root, registrationMillis, keys.size(), keys.polledSize()));
+        });
 
-        register.accept(rootFolder.toPath());
+        long interval = settings.getColdPollIntervalMillis();
+        coldPoller.scheduleWithFixedDelay(this::pollColdDirectories, interval, interval, TimeUnit.MILLISECONDS);
 
-        executor.submit(() -> {
+        poller.submit(() -> {
             while (true) {
                 final WatchKey key;
                 try {
                     key = watcher.take(); // wait for a key to be available
-                } catch (InterruptedException ex) {
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
                     return;
                 }
 
-                final Path dir = keys.get(key);
+                final Path dir = keys.getDirectory(key);
                 if (dir == null) {
                     log.warn("WatchKey " + key + " not recognized!");
                     continue;
                 }
-                key.pollEvents().stream()
-                        .filter(e -> (e.kind() != OVERFLOW))
-                        .map(watchEvent -> (WatchEvent<Path>) watchEvent)
-                        .forEach(watchEvent -> processWatchEvent(register, dir, watchEvent));
+                List<WatchEvent<?>> watchEvents = key.pollEvents();
+                try {
+                    if (watchEvents.stream().anyMatch(e -> e.kind() == OVERFLOW)) {
+                        // some events of the directory were dropped, the rescan covers the delivered ones as well
+                        handlers.execute(dir, () -> rescan(dir));
+                    } else {
+                        for (WatchEvent<?> watchEvent : watchEvents) {
+                            handlers.execute(dir, () -> processWatchEvent(dir, (WatchEvent<Path>) watchEvent));
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
                 boolean valid = key.reset(); // IMPORTANT: The key must be reset after processed
                 if (!valid) {
-                    break;
+                    // the directory is gone, other directories are still watched
+                    keys.remove(key);
                 }
             }
         });
     }
 
-    private void processWatchEvent(Consumer<Path> register, Path dir, WatchEvent<Path> watchEvent) {
+    /**
+     * @return future completed when the initial registration of the whole tree finishes
+     */
+    public CompletableFuture<Void> getRegistration() {
+        return registration;
+    }
+
+    private void processWatchEvent(Path dir, WatchEvent<Path> watchEvent) {
         EventType eventType = resolveEventType(watchEvent.kind());
         Path absPath = dir.resolve(watchEvent.context());
-        Boolean isDirectory = absPath.toFile().isDirectory();
+        DirectorySnapshot snapshot = keys.getSnapshot(dir);
+        DirectorySnapshot.Entry known = snapshot == null ? null : snapshot.get(watchEvent.context().toString());
+        boolean isDirectory = eventType == EventType.DELETE && known != null ? known.isDirectory() : absPath.toFile().isDirectory();
+        if (snapshot != null)
+            snapshot.update(absPath);
+
+        DirectorySnapshot.Entry entry = eventType == EventType.DELETE ? known
+                : snapshot == null ? null : snapshot.get(watchEvent.context().toString());
+        dispatch(dir, watchEvent.context().toString(), eventType, isDirectory, entry);
+    }
+
+    /**
+     * @param entry state of the entry before a delete or after a create, used to recognize moves
+     */
+    private void dispatch(Path dir, String name, EventType eventType, boolean isDirectory, DirectorySnapshot.Entry entry) {
+        Path absPath = dir.resolve(name);
         String relativeFromPath = dir.toString().replaceFirst(rootFolder.getAbsolutePath(), "").trim();
 
         if (!relativeFromPath.isEmpty())
             relativeFromPath += "/";
 
-        Path relativeFromRootPath = Paths.get(relativeFromPath + watchEvent.context());
+        Path relativeFromRootPath = Paths.get(relativeFromPath + name);
 
-        fileSystemEventProcessor.processFilesystemEvent(relativeFromRootPath, eventType, isDirectory ? FileType.DIR : FileType.REGULAR_FILE);
+        FileType fileType = isDirectory ? FileType.DIR : FileType.REGULAR_FILE;
+        if (eventType == EventType.DELETE)
+            moveDetector.deleted(relativeFromRootPath, fileType, entry);
+        else if (eventType == EventType.CREATE)
+            moveDetector.created(relativeFromRootPath, fileType, entry);
+        else
+            fileSystemEventProcessor.processFilesystemEvent(relativeFromRootPath, eventType, fileType);
 
         if (eventType == EventType.DELETE) {
             directoryRemoved(absPath);
         }
 
-        if (isDirectory) {
-            register.accept(absPath);
+        if (isDirectory && eventType == EventType.CREATE) {
+            registrar.register(absPath);
         }
     }
 
+    /**
+     * Recovers from a watch queue overflow by diffing the directory, and only this directory, against its last
+     * known snapshot and emitting the differences as regular events.
+     */
+    private void rescan(Path dir) {
+        syncMetrics.increment("watcher.overflows");
+        long start = System.nanoTime();
+        int changes = diffAndDispatch(dir);
+        if (changes < 0)
+            return;
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        syncMetrics.increment("watcher.rescans");
+        syncMetrics.add("watcher.rescan.events", changes);
+        syncMetrics.add("watcher.rescan.time.ms", millis);
+        lastRescanMillis = millis;
+        log.info(String.format("Rescanned %s after overflow in %d ms, %d changes", dir, millis, changes));
+    }
+
+    private void pollColdDirectories() {
+        try {
+            for (Path dir : keys.getPolledDirectories()) {
+                handlers.execute(dir, () -> {
+                    int changes = diffAndDispatch(dir);
+                    if (changes > 0)
+                        syncMetrics.add("watcher.poll.events", changes);
+                });
+            }
+            syncMetrics.increment("watcher.poll.cycles");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of emitted changes or -1 when the directory cannot be listed
+     */
+    private int diffAndDispatch(Path dir) {
+        DirectorySnapshot current;
+        try {
+            current = DirectorySnapshot.take(dir);
+        } catch (IOException e) {
+            log.warn("Cannot rescan " + dir + ": " + e.getMessage());
+            return -1;
+        }
+        DirectorySnapshot known = keys.getSnapshot(dir);
+        DirectorySnapshot previous = known == null ? new DirectorySnapshot() : known;
+        List<DirectorySnapshot.Change> changes = previous.diff(current);
+        keys.putSnapshot(dir, current);
+        for (DirectorySnapshot.Change change : changes) {
+            DirectorySnapshot.Entry entry = change.getEventType() == EventType.DELETE
+                    ? previous.get(change.getName()) : current.get(change.getName());
+            dispatch(dir, change.getName(), change.getEventType(), change.isDirectory(), entry);
+        }
+        return changes.size();
+    }
+
     private EventType resolveEventType(WatchEvent.Kind<Path> kind) {
         if (kind == ENTRY_CREATE)
             return EventType.CREATE;
@@ -144,14 +275,19 @@ public class RecursiveWatcherService {
         return EventType.MODIFY;
     }
 
+    @Override
     public void directoryRemoved(@NonNull final Path absolutePath) {
-        for (Map.Entry<WatchKey, Path> entry : keys.entrySet()) {
-            if (entry.getValue().equals(absolutePath)) {
-                entry.getKey().cancel();
-            }
-        }
-        if (keys.values().remove(absolutePath)) {
-            log.info("Unregistering to  " + absolutePath + " in watcher service");
+        int removed = keys.removeSubtree(absolutePath);
+        if (removed > 0) {
+            log.info("Unregistered " + removed + " directories under " + absolutePath + " from watcher service");
         }
     }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 }
\ No newline at end of file
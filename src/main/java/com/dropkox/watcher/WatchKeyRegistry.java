@@ -0,0 +1,105 @@
+package com.dropkox.watcher;
+
+import lombok.NonNull;
+
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Thread-safe two-way index between watched directories and their watch keys, together with directories which are
+ * polled instead and the last known snapshot of each directory. Directories are also kept sorted by path, so a
+ * whole subtree is found and unregistered in time proportional to its size.
+ */
+class WatchKeyRegistry {
+
+    private static final char SEPARATOR = '/';
+
+    private final Map<WatchKey, Path> directoriesByKey = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, WatchKey> keysByDirectory = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Path> polledDirectories = new ConcurrentSkipListMap<>();
+    private final Map<String, DirectorySnapshot> snapshots = new ConcurrentHashMap<>();
+
+    void register(@NonNull final Path directory, @NonNull final WatchKey watchKey) {
+        WatchKey previous = keysByDirectory.put(keyOf(directory), watchKey);
+        if (previous != null && previous != watchKey)
+            directoriesByKey.remove(previous);
+        directoriesByKey.put(watchKey, directory);
+    }
+
+    void registerPolled(@NonNull final Path directory) {
+        polledDirectories.put(keyOf(directory), directory);
+    }
+
+    Collection<Path> getPolledDirectories() {
+        return polledDirectories.values();
+    }
+
+    Path getDirectory(@NonNull final WatchKey watchKey) {
+        return directoriesByKey.get(watchKey);
+    }
+
+    DirectorySnapshot getSnapshot(@NonNull final Path directory) {
+        return snapshots.get(keyOf(directory));
+    }
+
+    void putSnapshot(@NonNull final Path directory, @NonNull final DirectorySnapshot snapshot) {
+        snapshots.put(keyOf(directory), snapshot);
+    }
+
+    boolean isRegistered(@NonNull final Path directory) {
+        return keysByDirectory.containsKey(keyOf(directory));
+    }
+
+    /**
+     * Forgets a key which is no longer valid.
+     */
+    void remove(@NonNull final WatchKey watchKey) {
+        Path directory = directoriesByKey.remove(watchKey);
+        if (directory != null && keysByDirectory.remove(keyOf(directory), watchKey))
+            snapshots.remove(keyOf(directory));
+    }
+
+    /**
+     * Cancels and forgets keys of the directory and all directories below it, watched or polled.
+     *
+     * @return number of unregistered directories
+     */
+    int removeSubtree(@NonNull final Path directory) {
+        String prefix = keyOf(directory);
+        NavigableMap<String, WatchKey> subtree = keysByDirectory.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        NavigableMap<String, Path> polledSubtree = polledDirectories.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        int removed = 0;
+        for (String polled : polledSubtree.keySet()) {
+            if (polledSubtree.remove(polled) != null) {
+                snapshots.remove(polled);
+                removed++;
+            }
+        }
+        for (Map.Entry<String, WatchKey> entry : subtree.entrySet()) {
+            if (subtree.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().cancel();
+                directoriesByKey.remove(entry.getValue());
+                snapshots.remove(entry.getKey());
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    int size() {
+        return directoriesByKey.size();
+    }
+
+    int polledSize() {
+        return polledDirectories.size();
+    }
+
+    private static String keyOf(Path directory) {
+        return directory.toString() + SEPARATOR;
+    }
+}
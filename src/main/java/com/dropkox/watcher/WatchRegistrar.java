@@ -0,0 +1,121 @@
+package com.dropkox.watcher;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.sun.nio.file.SensitivityWatchEventModifier;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Registers directory trees in the watch service on a fork-join pool, forking a task per subdirectory, and records
+ * the initial snapshot of every directory on the way. Once the configured number of watches is reached, or the
+ * watch service refuses more of them, the remaining directories are left to periodic polling.
+ */
+@Log4j
+class WatchRegistrar {
+
+    private static final WatchEvent.Kind<?>[] KINDS = {ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY};
+
+    private final WatchService watcher;
+    private final WatchKeyRegistry keys;
+    private final int maxWatches;
+    private final SyncMetrics syncMetrics;
+    private final ForkJoinPool pool;
+
+    WatchRegistrar(@NonNull final WatchService watcher, @NonNull final WatchKeyRegistry keys, final int maxWatches,
+                   final int parallelism, @NonNull final SyncMetrics syncMetrics) {
+        this.watcher = watcher;
+        this.keys = keys;
+        this.maxWatches = maxWatches;
+        this.syncMetrics = syncMetrics;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Registers the directory and all directories below it, returning when done.
+     */
+    void register(@NonNull final Path directory) {
+        pool.invoke(new DirectoryTask(directory));
+    }
+
+    CompletableFuture<Void> registerAsync(@NonNull final Path directory) {
+        return CompletableFuture.runAsync(() -> new DirectoryTask(directory).invoke(), pool);
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private boolean watch(Path directory) {
+        if (keys.size() >= maxWatches)
+            return false;
+        try {
+            WatchKey watchKey = directory.register(watcher, KINDS, SensitivityWatchEventModifier.HIGH);
+            keys.register(directory, watchKey);
+            log.debug("Registering " + directory + " in watcher service");
+            return true;
+        } catch (IOException e) {
+            // typically the inotify watch limit of the user
+            syncMetrics.increment("watcher.registration.failures");
+            log.debug("Cannot watch " + directory + ", polling it instead: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (!watch(directory)) {
+                keys.registerPolled(directory);
+                log.debug("Polling " + directory);
+            }
+            DirectorySnapshot snapshot = new DirectorySnapshot();
+            keys.putSnapshot(directory, snapshot);
+
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    snapshot.put(child, attributes);
+                    if (attributes.isDirectory())
+                        subdirectories.add(new DirectoryTask(child));
+                }
+            } catch (IOException e) {
+                log.warn("Cannot list " + directory + ": " + e.getMessage());
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.dropkox.watcher;
+
+public enum WatcherEngine {
+    /**
+     * Watch service of the operating system, see {@link RecursiveWatcherService}.
+     */
+    NATIVE,
+    /**
+     * Periodic snapshots, for filesystems which do not deliver watch events, see {@link PollingWatcherService}.
+     */
+    POLLING
+}
@@ -0,0 +1,36 @@
+package com.dropkox.watcher;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Builder
+@Data
+public class WatcherSettings {
+
+    public static final WatcherSettings DEFAULT = WatcherSettings.builder()
+            .handlerThreads(4)
+            .registrationThreads(4)
+            .maxWatches(50_000)
+            .coldPollIntervalMillis(10_000)
+            .pollIntervalMillis(1_000)
+            .maxPollIntervalMillis(30_000)
+            .moveWindowMillis(300)
+            .build();
+
+    private int handlerThreads;
+    private int registrationThreads;
+    /**
+     * Directories beyond this number of watches are polled instead.
+     */
+    private int maxWatches;
+    private long coldPollIntervalMillis;
+    /**
+     * Interval of the polling engine while the tree changes, it backs off up to the maximum while the tree is idle.
+     */
+    private long pollIntervalMillis;
+    private long maxPollIntervalMillis;
+    /**
+     * How long a delete and a create wait for each other to be reported as a single move, zero turns detection off.
+     */
+    private long moveWindowMillis;
+}
@@ -0,0 +1,41 @@
+package com.dropkox.core.concurrent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, 60_000);
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.allowRequest());
+
+        assertTrue(circuitBreaker.recordFailure());
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testTrialAfterOpenTimeDecidesState() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 20);
+        circuitBreaker.recordFailure();
+        Thread.sleep(50);
+
+        assertTrue(circuitBreaker.allowRequest());
+        assertTrue(circuitBreaker.recordFailure());
+        assertFalse(circuitBreaker.allowRequest());
+
+        Thread.sleep(50);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,102 @@
+package com.dropkox.core.concurrent;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyOrderedExecutorTest {
+
+    private KeyOrderedExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new KeyOrderedExecutor("test", 4, 100, new SyncMetrics());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testTasksOfSameKeyKeepSubmissionOrder() throws InterruptedException {
+        List<Integer> processed = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            int number = i;
+            executor.execute("a.txt", () -> processed.add(number));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(IntStream.range(0, 50).boxed().collect(Collectors.toList()), processed);
+    }
+
+    @Test
+    public void testErrorDoesNotStallLaterTasksOfKey() throws InterruptedException {
+        CountDownLatch nextDone = new CountDownLatch(1);
+
+        CompletableFuture<Void> failing = executor.submit("a.txt", () -> {
+            throw new AssertionError("broken");
+        });
+        executor.execute("a.txt", nextDone::countDown);
+
+        assertTrue(nextDone.await(5, TimeUnit.SECONDS));
+        assertTrue(failing.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testBlockedKeyDoesNotStallOtherKeys() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(1);
+
+        executor.execute("slow.mkv", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute("fast.txt", otherDone::countDown);
+
+        assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getInFlight());
+        release.countDown();
+    }
+
+    @Test
+    public void testRejectPolicyFailsWhenFull() throws InterruptedException {
+        KeyOrderedExecutor small = new KeyOrderedExecutor("small", 1, 1, new SyncMetrics());
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            small.submit("a.txt", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, BackpressurePolicy.REJECT);
+            small.submit("b.txt", () -> {
+            }, BackpressurePolicy.REJECT);
+            fail("Full executor accepted a task");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, small.getInFlight() + small.getQueued());
+        } finally {
+            release.countDown();
+            small.shutdown();
+        }
+    }
+}
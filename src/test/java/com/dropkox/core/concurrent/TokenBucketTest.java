@@ -0,0 +1,31 @@
+package com.dropkox.core.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstIsServedWithoutWaiting() throws InterruptedException {
+        TokenBucket tokenBucket = new TokenBucket(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, tokenBucket.acquire(1));
+        }
+    }
+
+    @Test
+    public void testCallerWaitsForMissingTokens() throws InterruptedException {
+        TokenBucket tokenBucket = new TokenBucket(100, 1);
+        tokenBucket.acquire(1);
+
+        long start = System.nanoTime();
+        long waited = tokenBucket.acquire(5);
+
+        assertTrue(waited > TimeUnit.MILLISECONDS.toNanos(30));
+        assertTrue(System.nanoTime() - start >= waited);
+    }
+}
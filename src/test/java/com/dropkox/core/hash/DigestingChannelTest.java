@@ -0,0 +1,27 @@
+package com.dropkox.core.hash;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertEquals;
+
+public class DigestingChannelTest {
+
+    @Test
+    public void testDigestCoversOnlyReadBytes() throws IOException {
+        DigestingChannel channel = new DigestingChannel(Channels.newChannel(new ByteArrayInputStream("hello".getBytes("UTF-8"))));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(3);
+        buffer.put((byte) 'x');
+
+        while (channel.read(buffer) >= 0) {
+            buffer.clear();
+        }
+
+        assertEquals(5, channel.getCount());
+        assertEquals("5d41402abc4b2a76b9719d911017c592", channel.getMd5());
+    }
+}
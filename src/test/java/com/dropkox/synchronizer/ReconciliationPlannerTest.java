@@ -0,0 +1,127 @@
+package com.dropkox.synchronizer;
+
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileEvent;
+import com.dropkox.model.FileType;
+import com.dropkox.model.KoxFile;
+import com.dropkox.synchronizer.state.SyncRecord;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class ReconciliationPlannerTest {
+
+    private final ISynchronizer localSide = mock(ISynchronizer.class);
+    private final ISynchronizer remoteSide = mock(ISynchronizer.class);
+    private final ReconciliationPlanner planner = new ReconciliationPlanner(localSide, remoteSide);
+
+    private final Map<String, KoxFile> local = new HashMap<>();
+    private final Map<String, KoxFile> remote = new HashMap<>();
+    private final Map<String, SyncRecord> records = new HashMap<>();
+
+    @Test
+    public void testUnchangedFileIsLeftAlone() {
+        local.put("a.txt", file(localSide, "a.txt", 1000, null));
+        remote.put("a.txt", file(remoteSide, "a.txt", 2000, "md5"));
+        records.put("a.txt", record("a.txt", 1000L, "md5"));
+
+        assertTrue(planner.plan(local, remote, records).getEvents().isEmpty());
+    }
+
+    @Test
+    public void testChangeOnOneSideIsSentToTheOther() {
+        local.put("a.txt", file(localSide, "a.txt", 5000, null));
+        remote.put("a.txt", file(remoteSide, "a.txt", 2000, "md5"));
+        records.put("a.txt", record("a.txt", 1000L, "md5"));
+        local.put("b.txt", file(localSide, "b.txt", 1000, null));
+        remote.put("b.txt", file(remoteSide, "b.txt", 2000, "new-md5"));
+        records.put("b.txt", record("b.txt", 1000L, "md5"));
+
+        ReconciliationPlanner.Plan plan = planner.plan(local, remote, records);
+
+        assertEquals(2, plan.getEvents().size());
+        assertSame(localSide, plan.getEvents().get(0).getKoxFile().getSource());
+        assertSame(remoteSide, plan.getEvents().get(1).getKoxFile().getSource());
+    }
+
+    @Test
+    public void testMissingSideIsDeletedOnlyWhenSynchronizedBefore() {
+        local.put("deleted-remotely.txt", file(localSide, "deleted-remotely.txt", 1000, null));
+        records.put("deleted-remotely.txt", record("deleted-remotely.txt", 1000L, "md5"));
+        local.put("new.txt", file(localSide, "new.txt", 1000, null));
+
+        ReconciliationPlanner.Plan plan = planner.plan(local, remote, records);
+
+        FileEvent deletion = plan.getEvents().get(0);
+        assertEquals(EventType.DELETE, deletion.getEventType());
+        assertSame(remoteSide, deletion.getKoxFile().getSource());
+        assertEquals("id-deleted-remotely.txt", deletion.getKoxFile().getId());
+        FileEvent upload = plan.getEvents().get(1);
+        assertEquals(EventType.CREATE, upload.getEventType());
+        assertSame(localSide, upload.getKoxFile().getSource());
+    }
+
+    @Test
+    public void testDirectoryWithNewContentsIsNotDeleted() {
+        remote.put("photos", directory(remoteSide, "photos"));
+        records.put("photos", record("photos", null, null));
+        remote.put("photos/old.jpg", file(remoteSide, "photos/old.jpg", 1000, "md5"));
+        records.put("photos/old.jpg", record("photos/old.jpg", 1000L, "md5"));
+        remote.put("photos/new.jpg", file(remoteSide, "photos/new.jpg", 1000, "new-md5"));
+
+        ReconciliationPlanner.Plan plan = planner.plan(local, remote, records);
+
+        assertEquals(2, plan.getEvents().size());
+        assertEquals(EventType.CREATE, plan.getEvents().get(0).getEventType());
+        assertEquals("photos/new.jpg", plan.getEvents().get(0).getKoxFile().getPath());
+        assertEquals(EventType.DELETE, plan.getEvents().get(1).getEventType());
+        assertEquals("photos/old.jpg", plan.getEvents().get(1).getKoxFile().getPath());
+    }
+
+    @Test
+    public void testStaleRecordsAreReported() {
+        records.put("gone.txt", record("gone.txt", 1000L, "md5"));
+
+        assertEquals(Collections.singletonList("gone.txt"), planner.plan(local, remote, records).getStaleRecords());
+    }
+
+    private static KoxFile file(ISynchronizer source, String path, long modifiedMillis, String checksum) {
+        return KoxFile.builder()
+                .source(source)
+                .id("id-" + path)
+                .path(path)
+                .name(path)
+                .fileType(FileType.REGULAR_FILE)
+                .modificationDate(new Date(modifiedMillis))
+                .checksum(checksum)
+                .build();
+    }
+
+    private static KoxFile directory(ISynchronizer source, String path) {
+        return KoxFile.builder()
+                .source(source)
+                .id("id-" + path)
+                .path(path)
+                .name(path)
+                .fileType(FileType.DIR)
+                .build();
+    }
+
+    private static SyncRecord record(String path, Long localModifiedMillis, String remoteMd5) {
+        return SyncRecord.builder()
+                .path(path)
+                .localModifiedMillis(localModifiedMillis)
+                .localMd5(remoteMd5)
+                .remoteId("id-" + path)
+                .remoteMd5(remoteMd5)
+                .build();
+    }
+}
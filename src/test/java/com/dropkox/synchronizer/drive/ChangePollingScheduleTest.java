@@ -0,0 +1,39 @@
+package com.dropkox.synchronizer.drive;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangePollingScheduleTest {
+
+    @Test
+    public void testIdleBackoffAndImmediatePollAfterActivity() throws InterruptedException {
+        ChangePollingSchedule schedule = new ChangePollingSchedule(1000, 5000);
+
+        schedule.pollFinished(false);
+        assertEquals(1000, schedule.getIntervalMillis());
+        schedule.pollFinished(false);
+        assertEquals(2000, schedule.getIntervalMillis());
+        schedule.pollFinished(false);
+        schedule.pollFinished(false);
+        assertEquals(5000, schedule.getIntervalMillis());
+
+        schedule.pollFinished(true);
+        assertEquals(0, schedule.getIntervalMillis());
+        assertFalse(schedule.awaitNextPoll());
+    }
+
+    @Test
+    public void testWakeUpEndsWaitEarly() throws InterruptedException {
+        ChangePollingSchedule schedule = new ChangePollingSchedule(60_000, 60_000);
+        schedule.pollFinished(false);
+        schedule.wakeUp();
+        schedule.wakeUp();
+
+        long start = System.currentTimeMillis();
+        assertTrue(schedule.awaitNextPoll());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+}
@@ -0,0 +1,165 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.concurrent.CircuitBreaker;
+import com.dropkox.core.concurrent.TokenBucket;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DriveBatchExecutorTest {
+
+    private static final Pattern REQUESTED_ID = Pattern.compile("/drive/v3/files/([\\w-]+)");
+    private static final String BOUNDARY = "batch_boundary";
+
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+    private final AtomicInteger singleRequests = new AtomicInteger();
+    private final AtomicInteger transportFailures = new AtomicInteger();
+    private final AtomicInteger unavailableResponses = new AtomicInteger();
+    private Drive drive;
+    private DriveBatchExecutor batchExecutor;
+
+    @Before
+    public void setUp() {
+        drive = new Drive.Builder(new FakeDrive(), JacksonFactory.getDefaultInstance(), null).build();
+        DriveRequestExecutor requestExecutor = new DriveRequestExecutor(new TokenBucket(1000, 1000),
+                new CircuitBreaker(10, 60_000), 4, 1, 5, new SyncMetrics());
+        batchExecutor = new DriveBatchExecutor(drive, requestExecutor, 200, new SyncMetrics());
+    }
+
+    @After
+    public void tearDown() {
+        batchExecutor.shutdown();
+    }
+
+    @Test
+    public void testConcurrentCallsAreSentInBatchesOfMaxSize() throws IOException {
+        List<CompletableFuture<File>> futures = get(150);
+
+        for (int i = 0; i < futures.size(); i++)
+            assertEquals("file-" + i, futures.get(i).join().getId());
+        assertEquals(2, batchSizes.size());
+        assertEquals(DriveBatchExecutor.MAX_BATCH_SIZE, (int) batchSizes.get(0));
+        assertEquals(50, (int) batchSizes.get(1));
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedCallByCall() throws IOException {
+        transportFailures.set(1);
+
+        List<CompletableFuture<File>> futures = get(3);
+
+        for (int i = 0; i < futures.size(); i++)
+            assertEquals("file-" + i, futures.get(i).join().getId());
+        // the failed batch and the retried calls
+        assertEquals(6, batchSizes.stream().mapToInt(Integer::intValue).sum());
+    }
+
+    @Test
+    public void testClientErrorFailsOnlyItsCall() throws IOException {
+        CompletableFuture<File> found = batchExecutor.submit(drive.files().get("file-1"));
+        CompletableFuture<File> missing = batchExecutor.submit(drive.files().get("missing"));
+
+        assertEquals("file-1", found.join().getId());
+        try {
+            missing.join();
+            fail("Missing file was found");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof GoogleJsonResponseException);
+            assertEquals(404, ((GoogleJsonResponseException) e.getCause()).getStatusCode());
+        }
+    }
+
+    @Test
+    public void testSingleCallIsRetriedOnTransientError() throws IOException {
+        unavailableResponses.set(1);
+
+        assertEquals("file-7", batchExecutor.submit(drive.files().get("file-7")).join().getId());
+        assertEquals(2, singleRequests.get());
+    }
+
+    private List<CompletableFuture<File>> get(int count) throws IOException {
+        List<CompletableFuture<File>> futures = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < count; i++)
+            futures.add(batchExecutor.submit(drive.files().get("file-" + i)));
+        return futures;
+    }
+
+    /**
+     * Answers gets with the requested ID, a 404 for "missing"; fails as many batches at the transport level and
+     * answers as many single requests with a 503 as asked to.
+     */
+    private class FakeDrive extends MockHttpTransport {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if (url.contains("/batch/"))
+                        return batch(getContentAsString());
+                    singleRequests.incrementAndGet();
+                    if (unavailableResponses.getAndUpdate(left -> Math.max(0, left - 1)) > 0)
+                        return new MockLowLevelHttpResponse().setStatusCode(503).setContentType("application/json")
+                                .setContent("{\"error\":{\"code\":503,\"message\":\"unavailable\"}}");
+                    Matcher matcher = REQUESTED_ID.matcher(url);
+                    assertTrue(matcher.find());
+                    return new MockLowLevelHttpResponse().setContentType("application/json")
+                            .setContent("{\"id\":\"" + matcher.group(1) + "\"}");
+                }
+            };
+        }
+
+        private LowLevelHttpResponse batch(String content) throws IOException {
+            Matcher matcher = REQUESTED_ID.matcher(content);
+            List<String> ids = new CopyOnWriteArrayList<>();
+            while (matcher.find())
+                ids.add(matcher.group(1));
+            batchSizes.add(ids.size());
+            if (transportFailures.getAndUpdate(left -> Math.max(0, left - 1)) > 0)
+                throw new SocketException("Connection reset");
+
+            String parts = IntStream.range(0, ids.size())
+                    .mapToObj(i -> "--" + BOUNDARY + "\r\n"
+                            + "Content-Type: application/http\r\n"
+                            + "Content-ID: <response-" + (i + 1) + ">\r\n\r\n"
+                            + part(ids.get(i)) + "\r\n")
+                    .collect(Collectors.joining("", "", "--" + BOUNDARY + "--\r\n"));
+            return new MockLowLevelHttpResponse()
+                    .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                    .setContent(parts);
+        }
+
+        private String part(String id) {
+            if (id.equals("missing"))
+                return "HTTP/1.1 404 Not Found\r\nContent-Type: application/json; charset=UTF-8\r\n\r\n"
+                        + "{\"error\":{\"code\":404,\"message\":\"File not found\"}}\r\n";
+            return "HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=UTF-8\r\n\r\n"
+                    + "{\"id\":\"" + id + "\"}\r\n";
+        }
+    }
+}
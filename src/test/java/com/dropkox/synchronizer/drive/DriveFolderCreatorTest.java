@@ -0,0 +1,116 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.concurrent.CircuitBreaker;
+import com.dropkox.core.concurrent.TokenBucket;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class DriveFolderCreatorTest {
+
+    private final List<String> createdFolders = new CopyOnWriteArrayList<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger conflicts = new AtomicInteger();
+    private SyncMetrics syncMetrics;
+    private DriveMetadataCache metadataCache;
+    private DriveBatchExecutor batchExecutor;
+    private DriveFolderCreator folderCreator;
+
+    @Before
+    public void setUp() {
+        syncMetrics = new SyncMetrics();
+        metadataCache = new DriveMetadataCache(1000, syncMetrics);
+        Drive drive = new Drive.Builder(new FakeDrive(), JacksonFactory.getDefaultInstance(), null).build();
+        DriveRequestExecutor requestExecutor = new DriveRequestExecutor(new TokenBucket(1000, 100),
+                new CircuitBreaker(3, 60_000), 4, 1, 5, syncMetrics);
+        batchExecutor = new DriveBatchExecutor(drive, requestExecutor, 0, syncMetrics);
+        folderCreator = new DriveFolderCreator(drive, requestExecutor, batchExecutor, metadataCache, (name, path) -> {
+            lookups.incrementAndGet();
+            return metadataCache.getId(path);
+        }, "id, name, mimeType, parents", 4, syncMetrics);
+    }
+
+    @After
+    public void tearDown() {
+        folderCreator.shutdown();
+        batchExecutor.shutdown();
+    }
+
+    @Test
+    public void testConcurrentCallersShareFolderCreation() {
+        List<CompletableFuture<String>> futures = IntStream.range(0, 8)
+                .mapToObj(i -> folderCreator.folderId("photos/2017/summer"))
+                .collect(Collectors.toList());
+
+        List<String> ids = futures.stream().map(CompletableFuture::join).distinct().collect(Collectors.toList());
+
+        assertEquals(1, ids.size());
+        assertEquals(3, createdFolders.size());
+        assertEquals(ids.get(0), metadataCache.getId("photos/2017/summer"));
+        assertEquals(100, syncMetrics.get("drive.folders.ids.reserved"));
+    }
+
+    @Test
+    public void testFoldersBelowCreatedFolderAreNotLookedUp() {
+        folderCreator.folderId("/music/jazz/live/").join();
+
+        assertEquals("music", createdFolders.get(0));
+        assertEquals(3, createdFolders.size());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testConflictOnReservedIdMeansFolderExists() {
+        conflicts.set(1);
+
+        String id = folderCreator.folderId("docs").join();
+
+        assertEquals("reserved-0", id);
+        assertEquals("reserved-0", metadataCache.getId("docs"));
+    }
+
+    /**
+     * Hands out predictable IDs and echoes created folders back; answers the first creates with a conflict as many
+     * times as asked to.
+     */
+    private class FakeDrive extends MockHttpTransport {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setContentType("application/json");
+                    if (url.contains("/files/generateIds")) {
+                        String ids = IntStream.range(0, 100).mapToObj(i -> "\"reserved-" + i + "\"").collect(Collectors.joining(","));
+                        return response.setContent("{\"ids\":[" + ids + "]}");
+                    }
+                    if (conflicts.getAndUpdate(left -> Math.max(0, left - 1)) > 0)
+                        return response.setStatusCode(409).setContent("{\"error\":{\"code\":409,\"message\":\"exists\"}}");
+                    String content = getContentAsString();
+                    createdFolders.add(JacksonFactory.getDefaultInstance()
+                            .fromString(content, File.class).getName());
+                    return response.setContent(content);
+                }
+            };
+        }
+    }
+}
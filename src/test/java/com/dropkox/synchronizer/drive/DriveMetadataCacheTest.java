@@ -0,0 +1,144 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.services.drive.model.File;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DriveMetadataCacheTest {
+
+    private SyncMetrics syncMetrics;
+    private DriveMetadataCache metadataCache;
+
+    @Before
+    public void setUp() {
+        syncMetrics = new SyncMetrics();
+        metadataCache = new DriveMetadataCache(2, syncMetrics);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        metadataCache.put(file("a", "a.txt", "root"));
+        metadataCache.put(file("b", "b.txt", "root"));
+        metadataCache.get("a");
+        metadataCache.put(file("c", "c.txt", "root"));
+
+        assertNotNull(metadataCache.get("a"));
+        assertNull(metadataCache.get("b"));
+        assertEquals(2, syncMetrics.get("drive.cache.hit"));
+        assertEquals(1, syncMetrics.get("drive.cache.miss"));
+    }
+
+    @Test
+    public void testFolderRenameInvalidatesResolvedPaths() {
+        metadataCache.put(folder("dir", "photos"));
+        metadataCache.put(file("a", "a.jpg", "dir"));
+        metadataCache.putPath("photos/a.jpg", "a");
+        assertEquals("a", metadataCache.getId("photos/a.jpg"));
+
+        metadataCache.put(folder("dir", "holidays"));
+
+        assertNull(metadataCache.getId("photos/a.jpg"));
+    }
+
+    @Test
+    public void testEvictedFolderInvalidatesResolvedPaths() {
+        metadataCache.put(folder("dir", "photos"));
+        metadataCache.put(file("a", "a.jpg", "dir"));
+        metadataCache.putPath("photos/a.jpg", "a");
+        metadataCache.get("a");
+        metadataCache.put(file("c", "c.txt", "root"));
+        metadataCache.get("a");
+
+        metadataCache.put(folder("dir", "holidays"));
+
+        assertNotNull(metadataCache.get("a"));
+        assertNull(metadataCache.getId("photos/a.jpg"));
+    }
+
+    @Test
+    public void testFolderRenameKeepsPathsOutsideOfIt() {
+        DriveMetadataCache cache = new DriveMetadataCache(10, syncMetrics);
+        cache.put(folder("dir", "photos"));
+        cache.put(file("a", "a.jpg", "dir"));
+        cache.put(file("b", "b.jpg", "root"));
+        cache.putPath("photos", "dir");
+        cache.putPath("photos/a.jpg", "a");
+        cache.putPath("photos2/b.jpg", "b");
+
+        cache.put(folder("dir", "holidays"));
+
+        assertNull(cache.getId("photos"));
+        assertNull(cache.getId("photos/a.jpg"));
+        assertEquals("b", cache.getId("photos2/b.jpg"));
+    }
+
+    @Test
+    public void testTrashedFileIsNotResolved() {
+        metadataCache.put(file("a", "a.txt", "root"));
+        metadataCache.putPath("a.txt", "a");
+
+        metadataCache.put(file("a", "a.txt", "root").setTrashed(true));
+
+        assertNull(metadataCache.getId("a.txt"));
+    }
+
+    @Test
+    public void testRenameAndNewParentAreRelocations() {
+        File file = file("a", "a.jpg", "dir");
+
+        assertTrue(DriveMetadataCache.isRelocated(file, file("a", "b.jpg", "dir")));
+        assertTrue(DriveMetadataCache.isRelocated(file, file("a", "a.jpg", "other")));
+        assertFalse(DriveMetadataCache.isRelocated(file, file("a", "a.jpg", "dir").setMd5Checksum("changed")));
+    }
+
+    @Test
+    public void testPeekIsNotCountedAsLookup() {
+        metadataCache.put(file("a", "a.txt", "root"));
+
+        assertNotNull(metadataCache.peek("a"));
+        assertNull(metadataCache.peek("b"));
+        assertEquals(0, syncMetrics.get("drive.cache.hit"));
+        assertEquals(0, syncMetrics.get("drive.cache.miss"));
+    }
+
+    @Test
+    public void testContentIsFoundByChecksumUntilFileIsGone() {
+        metadataCache.put(file("a", "a.jpg", "root").setMd5Checksum("md5"));
+        assertEquals("a", metadataCache.getIdByMd5("md5"));
+
+        metadataCache.put(file("a", "a.jpg", "root").setMd5Checksum("md5").setTrashed(true));
+        assertNull(metadataCache.getIdByMd5("md5"));
+
+        metadataCache.put(file("b", "b.jpg", "root").setMd5Checksum("md5"));
+        metadataCache.put(file("c", "c.jpg", "root"));
+        metadataCache.put(file("d", "d.jpg", "root"));
+        assertNull(metadataCache.getIdByMd5("md5"));
+    }
+
+    @Test
+    public void testContentIsFoundWhileAnyCopyIsLeft() {
+        metadataCache.put(file("a", "a.jpg", "root").setMd5Checksum("md5"));
+        metadataCache.put(file("b", "b.jpg", "root").setMd5Checksum("md5"));
+
+        metadataCache.evict("a");
+
+        assertEquals("b", metadataCache.getIdByMd5("md5"));
+    }
+
+    private File file(String id, String name, String parentId) {
+        return new File().setId(id).setName(name).setParents(Collections.singletonList(parentId)).setTrashed(false);
+    }
+
+    private File folder(String id, String name) {
+        return file(id, name, "root").setMimeType(DriveMetadataCache.FOLDER_MIME_TYPE);
+    }
+}
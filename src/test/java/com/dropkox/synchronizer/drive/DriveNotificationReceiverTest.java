@@ -0,0 +1,72 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Plays the part of Drive delivering notifications of a watched channel.
+ */
+public class DriveNotificationReceiverTest {
+
+    private final AtomicInteger notified = new AtomicInteger();
+    private final SyncMetrics syncMetrics = new SyncMetrics();
+    private DriveNotificationReceiver receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        receiver = new DriveNotificationReceiver(0, "secret", notified::incrementAndGet, syncMetrics);
+        receiver.acceptChannel("channel-1");
+        receiver.start();
+    }
+
+    @After
+    public void tearDown() {
+        receiver.stop();
+    }
+
+    @Test
+    public void testChangeNotificationTriggersPoll() throws IOException {
+        assertEquals(200, notify("channel-1", "secret", "sync"));
+        assertEquals(0, notified.get());
+
+        assertEquals(200, notify("channel-1", "secret", "change"));
+        assertEquals(1, notified.get());
+        assertEquals(1, syncMetrics.get("drive.push.notifications"));
+    }
+
+    @Test
+    public void testForeignNotificationsAreRefused() throws IOException {
+        assertEquals(403, notify("channel-2", "secret", "change"));
+        assertEquals(403, notify("channel-1", "guess", "change"));
+
+        receiver.forgetChannel("channel-1");
+        assertEquals(403, notify("channel-1", "secret", "change"));
+
+        assertEquals(0, notified.get());
+        assertEquals(3, syncMetrics.get("drive.push.refused"));
+    }
+
+    private int notify(String channelId, String token, String resourceState) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + receiver.getPort()
+                + DriveNotificationReceiver.PATH).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("X-Goog-Channel-ID", channelId);
+        connection.setRequestProperty("X-Goog-Channel-Token", token);
+        connection.setRequestProperty("X-Goog-Resource-State", resourceState);
+        connection.setRequestProperty("X-Goog-Resource-ID", "changes");
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.concurrent.CircuitBreaker;
+import com.dropkox.core.concurrent.TokenBucket;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DriveRequestExecutorTest {
+
+    private SyncMetrics syncMetrics;
+    private DriveRequestExecutor requestExecutor;
+
+    @Before
+    public void setUp() {
+        syncMetrics = new SyncMetrics();
+        requestExecutor = new DriveRequestExecutor(new TokenBucket(1000, 100), new CircuitBreaker(3, 60_000),
+                4, 1, 5, syncMetrics);
+    }
+
+    @Test
+    public void testTransientFailuresAreRetried() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+
+        String result = requestExecutor.execute(() -> {
+            if (calls.incrementAndGet() == 1)
+                throw error(503, null);
+            if (calls.get() == 2)
+                throw error(403, "userRateLimitExceeded");
+            return "done";
+        });
+
+        assertEquals("done", result);
+        assertEquals(3, calls.get());
+        assertEquals(2, syncMetrics.get("drive.requests.retried"));
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            requestExecutor.execute(() -> {
+                calls.incrementAndGet();
+                throw error(403, "insufficientFilePermissions");
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals(1, calls.get());
+            assertEquals(1, syncMetrics.get("drive.requests.failed"));
+        }
+    }
+
+    @Test
+    public void testCircuitOpensAfterRepeatedFailures() {
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            requestExecutor.execute(() -> {
+                calls.incrementAndGet();
+                throw error(500, null);
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals(3, calls.get());
+            assertEquals(1, syncMetrics.get("drive.circuit.opened"));
+        }
+        try {
+            requestExecutor.execute(() -> "never sent");
+            fail();
+        } catch (IOException e) {
+            assertEquals(1, syncMetrics.get("drive.requests.short-circuited"));
+        }
+    }
+
+    @Test
+    public void testRetryableErrors() {
+        assertTrue(DriveRequestExecutor.isRetryable(error(429, null)));
+        assertTrue(DriveRequestExecutor.isRetryable(error(502, null)));
+        assertTrue(DriveRequestExecutor.isRetryable(error(403, "rateLimitExceeded")));
+        assertFalse(DriveRequestExecutor.isRetryable(error(404, null)));
+        assertFalse(DriveRequestExecutor.isRetryable(new IOException("local failure")));
+    }
+
+    private static GoogleJsonResponseException error(int code, String reason) {
+        GoogleJsonError details = new GoogleJsonError();
+        details.setCode(code);
+        if (reason != null) {
+            GoogleJsonError.ErrorInfo info = new GoogleJsonError.ErrorInfo();
+            info.setReason(reason);
+            details.setErrors(Collections.singletonList(info));
+        }
+        return new GoogleJsonResponseException(new HttpResponseException.Builder(code, null, new HttpHeaders()), details);
+    }
+}
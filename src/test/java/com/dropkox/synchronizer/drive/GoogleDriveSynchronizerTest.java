@@ -0,0 +1,107 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileEvent;
+import com.dropkox.model.FileType;
+import com.dropkox.model.KoxFile;
+import com.dropkox.synchronizer.ISynchronizer;
+import com.dropkox.synchronizer.SynchronizationService;
+import com.dropkox.synchronizer.TransferSource;
+import com.dropkox.synchronizer.state.SyncRecord;
+import com.dropkox.synchronizer.state.SyncStateStore;
+import com.google.api.services.drive.model.File;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.time.Instant;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GoogleDriveSynchronizerTest {
+
+    private static final String FILE_ID = "file-1";
+    private static final byte[] CONTENT = "changed content".getBytes();
+
+    private final GoogleDriveService driveService = mock(GoogleDriveService.class);
+    private final SyncStateStore syncStateStore = mock(SyncStateStore.class);
+    private final ISynchronizer localSide = mock(ISynchronizer.class);
+    private final GoogleDriveSynchronizer synchronizer = new GoogleDriveSynchronizer(mock(SynchronizationService.class),
+            driveService, new SyncMetrics(), syncStateStore);
+
+    private final KoxFile changed = KoxFile.builder()
+            .source(localSide)
+            .id("docs/a.txt")
+            .fileType(FileType.REGULAR_FILE)
+            .modificationDate(new Date(60_000))
+            .size((long) CONTENT.length)
+            .name("a.txt")
+            .path("docs/a.txt")
+            .build();
+
+    @Before
+    public void setUp() {
+        when(driveService.getId("a.txt", "docs/a.txt")).thenReturn(FILE_ID);
+        when(driveService.getModificationDate(FILE_ID)).thenReturn(Instant.ofEpochMilli(1_000));
+        when(driveService.getMd5Checksum(FILE_ID)).thenReturn("old-md5");
+        when(localSide.openTransfer(changed)).thenReturn(TransferSource.builder()
+                .channel(Channels.newChannel(new ByteArrayInputStream(CONTENT)))
+                .contentLength((long) CONTENT.length)
+                .build());
+    }
+
+    @Test
+    public void testChangedFileIsUpdatedOnItsExistingId() {
+        when(localSide.getChecksum(changed)).thenReturn("new-md5");
+        when(driveService.updateFile(eq(FILE_ID), eq("a.txt"), any(InputStream.class), anyLong(), anyString()))
+                .thenReturn(new File().setId(FILE_ID));
+
+        synchronizer.process(modified(changed));
+
+        verify(driveService).updateFile(eq(FILE_ID), eq("a.txt"), any(InputStream.class), eq((long) CONTENT.length), anyString());
+        verify(driveService, never()).createFile(anyString(), anyString(), any(InputStream.class), anyLong(), anyString());
+        verify(driveService, never()).delete(anyString());
+        assertEquals(FILE_ID, recorded().getRemoteId());
+    }
+
+    @Test
+    public void testUploadIsSkippedWhenChecksumsMatch() {
+        when(localSide.getChecksum(changed)).thenReturn("old-md5");
+
+        synchronizer.process(modified(changed));
+
+        verify(localSide, never()).openTransfer(any(KoxFile.class));
+        verify(driveService, never()).updateFile(anyString(), anyString(), any(InputStream.class), anyLong(), anyString());
+        verify(driveService, never()).createFile(anyString(), anyString(), any(InputStream.class), anyLong(), anyString());
+        SyncRecord record = recorded();
+        assertEquals(FILE_ID, record.getRemoteId());
+        assertEquals("old-md5", record.getRemoteMd5());
+    }
+
+    private FileEvent modified(KoxFile koxFile) {
+        return FileEvent.builder()
+                .koxFile(koxFile)
+                .eventType(EventType.MODIFY)
+                .timestamp(koxFile.getModificationDate().getTime())
+                .build();
+    }
+
+    private SyncRecord recorded() {
+        ArgumentCaptor<SyncRecord> record = ArgumentCaptor.forClass(SyncRecord.class);
+        verify(syncStateStore).putRecord(record.capture());
+        return record.getValue();
+    }
+}
@@ -1,14 +1,16 @@
 package com.dropkox.synchronizer.drive;
 
+import com.dropkox.core.metrics.SyncMetrics;
 import com.dropkox.synchronizer.SynchronizationService;
 import com.dropkox.synchronizer.drive.config.GoogleDriveConfig;
+import com.dropkox.synchronizer.state.SyncStateStore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
-@SpringBootTest(classes = {GoogleDriveSynchronizer.class, GoogleDriveConfig.class, SynchronizationService.class})
+@SpringBootTest(classes = {GoogleDriveSynchronizer.class, GoogleDriveConfig.class, SynchronizationService.class, SyncMetrics.class, SyncStateStore.class})
 @RunWith(SpringJUnit4ClassRunner.class)
 public class GoogleDriveSynchronizerTestIT {
 
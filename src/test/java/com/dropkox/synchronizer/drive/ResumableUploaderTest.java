@@ -0,0 +1,136 @@
+package com.dropkox.synchronizer.drive;
+
+import com.dropkox.core.concurrent.CircuitBreaker;
+import com.dropkox.core.concurrent.TokenBucket;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ResumableUploaderTest {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final String SESSION_URI = "https://upload.example.com/session-1";
+    private static final String RESUME_KEY = "video.mkv:600000:1000";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final byte[] content = new byte[600_000];
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final List<String> sentRanges = new CopyOnWriteArrayList<>();
+    private final AtomicInteger sessionsStarted = new AtomicInteger();
+    private final AtomicInteger failingChunks = new AtomicInteger();
+    private UploadSessionStore sessionStore;
+    private ResumableUploader uploader;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) i;
+        Drive drive = new Drive.Builder(new FakeUploadServer(), JacksonFactory.getDefaultInstance(), null).build();
+        DriveRequestExecutor requestExecutor = new DriveRequestExecutor(new TokenBucket(1000, 100),
+                new CircuitBreaker(10, 60_000), 4, 1, 5, new SyncMetrics());
+        sessionStore = new UploadSessionStore(temporaryFolder.getRoot().toPath().resolve("upload-sessions.properties"));
+        uploader = new ResumableUploader(drive, requestExecutor, sessionStore, CHUNK_SIZE, new SyncMetrics());
+    }
+
+    @Test
+    public void testFailedChunkIsResumedFromAcknowledgedByte() throws IOException {
+        failingChunks.set(1);
+
+        File uploaded = upload();
+
+        assertEquals("uploaded", uploaded.getId());
+        assertArrayEquals(content, received.toByteArray());
+        assertEquals(Arrays.asList("bytes 0-262143/600000", "bytes */600000", "bytes 0-262143/600000",
+                "bytes 262144-524287/600000", "bytes 524288-599999/600000"), sentRanges);
+        assertNull(sessionStore.get(RESUME_KEY));
+    }
+
+    @Test
+    public void testUploadFailingRepeatedlyKeepsSessionForNextAttempt() throws IOException {
+        failingChunks.set(1_000);
+        // Drive stored the first chunk, only its response was lost
+        received.write(content, 0, CHUNK_SIZE);
+        try {
+            upload();
+            fail("Upload succeeded with a failing server");
+        } catch (SocketException e) {
+            assertEquals(SESSION_URI, sessionStore.get(RESUME_KEY));
+        }
+
+        failingChunks.set(0);
+        sentRanges.clear();
+        File uploaded = upload();
+
+        assertNotNull(uploaded);
+        assertEquals(1, sessionsStarted.get());
+        assertEquals(Arrays.asList("bytes */600000", "bytes 262144-524287/600000", "bytes 524288-599999/600000"), sentRanges);
+        assertArrayEquals(content, received.toByteArray());
+    }
+
+    private File upload() throws IOException {
+        return uploader.upload(null, new File().setName("video.mkv"), "video/x-matroska", new ByteArrayInputStream(content),
+                content.length, RESUME_KEY, "id, name");
+    }
+
+    /**
+     * Keeps the received bytes of one session and acknowledges them on a status query; resets the connection
+     * instead of storing a chunk as many times as asked to.
+     */
+    private class FakeUploadServer extends MockHttpTransport {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if (!url.startsWith(SESSION_URI)) {
+                        sessionsStarted.incrementAndGet();
+                        return new MockLowLevelHttpResponse().addHeader("Location", SESSION_URI);
+                    }
+                    String range = getFirstHeaderValue("Content-Range");
+                    sentRanges.add(range);
+                    if (!range.startsWith("bytes */")) {
+                        if (failingChunks.getAndUpdate(left -> Math.max(0, left - 1)) > 0)
+                            throw new SocketException("Connection reset");
+                        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                        getStreamingContent().writeTo(chunk);
+                        received.write(chunk.toByteArray());
+                    }
+                    if (received.size() == content.length)
+                        return new MockLowLevelHttpResponse().setContentType("application/json")
+                                .setContent("{\"id\":\"uploaded\",\"name\":\"video.mkv\"}");
+                    MockLowLevelHttpResponse incomplete = new MockLowLevelHttpResponse().setStatusCode(308);
+                    if (received.size() > 0)
+                        incomplete.addHeader("Range", "bytes=0-" + (received.size() - 1));
+                    return incomplete;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.dropkox.synchronizer.drive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UploadSessionStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path storeFile;
+
+    @Before
+    public void setUp() {
+        storeFile = temporaryFolder.getRoot().toPath().resolve("state/upload-sessions.properties");
+    }
+
+    @Test
+    public void testSessionsSurviveRestart() {
+        UploadSessionStore sessionStore = new UploadSessionStore(storeFile);
+        sessionStore.put("a.mkv:100:1", "https://upload.example.com/a");
+        sessionStore.put("b.mkv:200:2", "https://upload.example.com/b");
+        sessionStore.remove("b.mkv:200:2");
+
+        UploadSessionStore restarted = new UploadSessionStore(storeFile);
+
+        assertEquals("https://upload.example.com/a", restarted.get("a.mkv:100:1"));
+        assertNull(restarted.get("b.mkv:200:2"));
+    }
+
+    @Test
+    public void testExpiredSessionIsDropped() throws IOException {
+        long weekAgo = System.currentTimeMillis() - Duration.ofDays(7).toMillis();
+        Files.createDirectories(storeFile.getParent());
+        Files.write(storeFile, Collections.singletonList("old.mkv\\:100\\:1=https\\://upload.example.com/old " + weekAgo));
+
+        UploadSessionStore sessionStore = new UploadSessionStore(storeFile);
+
+        assertNull(sessionStore.get("old.mkv:100:1"));
+        assertNull(new UploadSessionStore(storeFile).get("old.mkv:100:1"));
+    }
+}
@@ -0,0 +1,180 @@
+package com.dropkox.synchronizer.drive.config;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.FileList;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the same Drive listing against a local stand-in of the Drive API over the pooled transport and the plain
+ * JDK one, with and without a field mask, and logs latency, bytes and connections per operation. Not part of the
+ * unit tests, run it with {@code gradle benchmark}.
+ */
+public class DriveTransportBenchmark {
+
+    private static final Logger log = Logger.getLogger(DriveTransportBenchmark.class);
+
+    private static final int OPERATIONS = 400;
+    private static final int THREADS = 8;
+    // smaller than the number of callers, the plain transport opens a connection per concurrent call
+    private static final int POOL_SIZE = THREADS / 2;
+    private static final int FILES_PER_PAGE = 50;
+    private static final String FIELDS = "files(id, name, parents)";
+
+    private HttpServer server;
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong gzipped = new AtomicLong();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/drive/v3/files", this::listFiles);
+        server.setExecutor(Executors.newFixedThreadPool(THREADS));
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testPooledTransportReusesConnections() throws Exception {
+        Result plain = run("plain JDK", new NetHttpTransport(), true);
+        Result pooled = run("pooled", DriveHttpTransport.pooled(POOL_SIZE, POOL_SIZE, 30_000), true);
+
+        assertEquals(OPERATIONS, plain.gzipped);
+        assertEquals(OPERATIONS, pooled.gzipped);
+        assertTrue(pooled.connections <= POOL_SIZE);
+        assertTrue(pooled.connections < OPERATIONS);
+        assertTrue(pooled.connections + " connections pooled, " + plain.connections + " plain",
+                pooled.connections < plain.connections);
+    }
+
+    @Test
+    public void testFieldMaskShrinksResponses() throws Exception {
+        HttpTransport transport = DriveHttpTransport.pooled(POOL_SIZE, POOL_SIZE, 30_000);
+        Result full = run("pooled, all fields", transport, false);
+        Result masked = run("pooled, field mask", transport, true);
+
+        assertTrue(masked.bytesPerOperation < full.bytesPerOperation);
+    }
+
+    private Result run(String name, HttpTransport transport, boolean masked) throws Exception {
+        bytesSent.set(0);
+        gzipped.set(0);
+        connections.clear();
+        Drive drive = new Drive.Builder(transport, JacksonFactory.getDefaultInstance(), null)
+                .setRootUrl("http://localhost:" + server.getAddress().getPort() + "/")
+                .setApplicationName("benchmark")
+                .build();
+        ExecutorService callers = Executors.newFixedThreadPool(THREADS);
+        long started = System.nanoTime();
+        List<Future<Long>> latencies = new ArrayList<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            latencies.add(callers.submit(() -> {
+                long start = System.nanoTime();
+                Drive.Files.List request = drive.files().list().setQ("name = 'report.pdf'");
+                if (masked)
+                    request.setFields(FIELDS);
+                FileList files = request.execute();
+                assertEquals(FILES_PER_PAGE, files.getFiles().size());
+                return System.nanoTime() - start;
+            }));
+        }
+        long totalNanos = 0;
+        for (Future<Long> latency : latencies)
+            totalNanos += latency.get();
+        long elapsedNanos = System.nanoTime() - started;
+        callers.shutdown();
+
+        Result result = new Result(bytesSent.get() / OPERATIONS, connections.size(), gzipped.get());
+        log.info(String.format("%-20s %8.3f ms/op  %6d ops/s  %6d B/op  %4d connections", name,
+                totalNanos / 1e6 / OPERATIONS, OPERATIONS * 1_000_000_000L / elapsedNanos,
+                result.bytesPerOperation, result.connections));
+        return result;
+    }
+
+    /**
+     * Answers like Drive does: only the masked fields when a mask is given, gzip when the client asks for it.
+     */
+    private void listFiles(HttpExchange exchange) throws IOException {
+        connections.add(exchange.getRemoteAddress());
+        String query = exchange.getRequestURI().getQuery();
+        boolean masked = query != null && query.contains("fields=");
+        byte[] body = fileList(masked).getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            gzipped.incrementAndGet();
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        bytesSent.addAndGet(body.length);
+    }
+
+    private static String fileList(boolean masked) {
+        return IntStream.range(0, FILES_PER_PAGE)
+                .mapToObj(i -> masked
+                        ? String.format("{\"id\":\"file-%d\",\"name\":\"report-%d.pdf\",\"parents\":[\"folder-%d\"]}", i, i, i % 7)
+                        : String.format("{\"kind\":\"drive#file\",\"id\":\"file-%d\",\"name\":\"report-%d.pdf\",\"mimeType\":\"application/pdf\","
+                                + "\"parents\":[\"folder-%d\"],\"starred\":false,\"trashed\":false,\"explicitlyTrashed\":false,"
+                                + "\"version\":\"%d\",\"webViewLink\":\"https://drive.google.com/file/d/file-%d/view\","
+                                + "\"iconLink\":\"https://drive-thirdparty.googleusercontent.com/16/type/application/pdf\","
+                                + "\"createdTime\":\"2017-05-01T10:00:00.000Z\",\"modifiedTime\":\"2017-05-02T10:00:00.000Z\","
+                                + "\"owners\":[{\"kind\":\"drive#user\",\"displayName\":\"Owner\",\"me\":true,"
+                                + "\"permissionId\":\"%d\",\"emailAddress\":\"owner@example.com\"}],"
+                                + "\"md5Checksum\":\"%032x\",\"size\":\"%d\",\"quotaBytesUsed\":\"%d\"}",
+                        i, i, i % 7, i, i, i, i, 1024 * i, 1024 * i))
+                .collect(Collectors.joining(",", "{\"files\":[", "]}"));
+    }
+
+    private static class Result {
+        private final long bytesPerOperation;
+        private final int connections;
+        private final long gzipped;
+
+        private Result(long bytesPerOperation, int connections, long gzipped) {
+            this.bytesPerOperation = bytesPerOperation;
+            this.connections = connections;
+            this.gzipped = gzipped;
+        }
+    }
+}
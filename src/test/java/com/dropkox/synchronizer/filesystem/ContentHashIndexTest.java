@@ -0,0 +1,82 @@
+package com.dropkox.synchronizer.filesystem;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ContentHashIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path indexFile;
+    private ContentHashIndex contentHashIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        indexFile = temporaryFolder.getRoot().toPath().resolve("state/index.bin");
+        contentHashIndex = new ContentHashIndex(indexFile, 1, new SyncMetrics());
+    }
+
+    @After
+    public void tearDown() {
+        contentHashIndex.close();
+    }
+
+    @Test
+    public void testMd5MatchesDriveChecksumFormat() throws IOException {
+        Path file = temporaryFolder.newFile("hello.txt").toPath();
+        Files.write(file, "hello".getBytes("UTF-8"));
+
+        FileFingerprint fingerprint = contentHashIndex.fingerprint("hello.txt", file).join();
+
+        assertEquals("5d41402abc4b2a76b9719d911017c592", fingerprint.getMd5());
+        assertEquals(5, fingerprint.getSize());
+    }
+
+    @Test
+    public void testFingerprintIsReusedUntilFileChanges() throws IOException {
+        Path file = temporaryFolder.newFile("data.bin").toPath();
+        Files.write(file, new byte[3 * FileFingerprint.BLOCK_SIZE]);
+        FileFingerprint first = contentHashIndex.fingerprint("data.bin", file).join();
+
+        assertSame(first, contentHashIndex.fingerprint("data.bin", file).join());
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")) {
+            randomAccessFile.seek(FileFingerprint.BLOCK_SIZE + 10);
+            randomAccessFile.write(42);
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(first.getModifiedMillis() + 2000));
+        assertFalse(contentHashIndex.getIfFresh("data.bin", file).isPresent());
+
+        FileFingerprint second = contentHashIndex.fingerprint("data.bin", file).join();
+        assertEquals(Collections.singletonList(1), second.changedBlocks(first));
+    }
+
+    @Test
+    public void testIndexIsPersistedOnClose() throws IOException {
+        Path file = temporaryFolder.newFile("a.txt").toPath();
+        Files.write(file, "a".getBytes("UTF-8"));
+        contentHashIndex.fingerprint("a.txt", file).join();
+        contentHashIndex.close();
+
+        contentHashIndex = new ContentHashIndex(indexFile, 1, new SyncMetrics());
+
+        assertTrue(contentHashIndex.getIfFresh("a.txt", file).isPresent());
+    }
+}
@@ -1,6 +1,8 @@
 package com.dropkox.synchronizer.filesystem;
 
+import com.dropkox.core.metrics.SyncMetrics;
 import com.dropkox.synchronizer.SynchronizationService;
+import com.dropkox.synchronizer.state.SyncStateStore;
 import com.dropkox.watcher.RecursiveWatcherService;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -8,7 +10,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
-@SpringBootTest(classes = {FilesystemSynchronizer.class, RecursiveWatcherService.class, SynchronizationService.class})
+@SpringBootTest(classes = {FilesystemSynchronizer.class, RecursiveWatcherService.class, SynchronizationService.class, SyncMetrics.class, SyncStateStore.class})
 @RunWith(SpringJUnit4ClassRunner.class)
 public class FilesystemSynchronizationServiceTest {
 
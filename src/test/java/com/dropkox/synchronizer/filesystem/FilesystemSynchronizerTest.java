@@ -0,0 +1,281 @@
+package com.dropkox.synchronizer.filesystem;
+
+import com.dropkox.core.concurrent.BackpressurePolicy;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileEvent;
+import com.dropkox.model.FileType;
+import com.dropkox.model.KoxFile;
+import com.dropkox.synchronizer.ISynchronizer;
+import com.dropkox.synchronizer.SynchronizationService;
+import com.dropkox.synchronizer.TransferSource;
+import com.dropkox.synchronizer.state.SyncStateStore;
+import com.dropkox.watcher.IFileSystemWatcher;
+import com.dropkox.watcher.WatcherEngine;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FilesystemSynchronizerTest {
+
+    private static final int MAX_IN_FLIGHT = 2;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final SynchronizationService synchronizationService = mock(SynchronizationService.class);
+    private final SyncStateStore syncStateStore = mock(SyncStateStore.class);
+    private final IFileSystemWatcher fileSystemWatcher = mock(IFileSystemWatcher.class);
+    private final ISynchronizer drive = mock(ISynchronizer.class);
+    private final List<String> accepted = new CopyOnWriteArrayList<>();
+    private Function<FileEvent, CompletableFuture<Void>> answer = event -> CompletableFuture.completedFuture(null);
+    private Path root;
+    private FilesystemSynchronizer synchronizer;
+
+    @Before
+    public void setUp() throws IOException {
+        root = temporaryFolder.newFolder("root").toPath();
+        synchronizer = new FilesystemSynchronizer(synchronizationService, new SyncMetrics(), syncStateStore);
+        ReflectionTestUtils.setField(synchronizer, "rootFolder", root.toFile());
+        ReflectionTestUtils.setField(synchronizer, "stateFolder", temporaryFolder.newFolder("state"));
+        ReflectionTestUtils.setField(synchronizer, "indexThreads", 1);
+        ReflectionTestUtils.setField(synchronizer, "watcherEngine", WatcherEngine.POLLING);
+        ReflectionTestUtils.setField(synchronizer, "importMaxInFlight", MAX_IN_FLIGHT);
+        ReflectionTestUtils.setField(synchronizer, "transferBufferSize", 4096);
+        ReflectionTestUtils.setField(synchronizer, "transferBuffers", 2);
+        synchronizer.start();
+        ReflectionTestUtils.setField(synchronizer, "fileSystemWatcher", fileSystemWatcher);
+        when(synchronizationService.accept(any(FileEvent.class), eq(BackpressurePolicy.BLOCK))).thenAnswer(invocation -> {
+            FileEvent event = (FileEvent) invocation.getArguments()[0];
+            accepted.add(event.getKoxFile().getPath());
+            return answer.apply(event);
+        });
+    }
+
+    @After
+    public void tearDown() {
+        synchronizer.stop();
+    }
+
+    @Test
+    public void testImportKeepsAtMostMaxInFlightEvents() throws Exception {
+        List<CompletableFuture<Void>> uploads = new CopyOnWriteArrayList<>();
+        answer = event -> {
+            CompletableFuture<Void> upload = new CompletableFuture<>();
+            uploads.add(upload);
+            return upload;
+        };
+        for (int i = 0; i < 5; i++)
+            write("imported/file-" + i);
+
+        importSubtree("imported");
+        awaitAccepted(MAX_IN_FLIGHT);
+        Thread.sleep(200);
+
+        assertEquals(MAX_IN_FLIGHT, accepted.size());
+
+        answer = event -> CompletableFuture.completedFuture(null);
+        uploads.forEach(upload -> upload.complete(null));
+        awaitAccepted(5);
+    }
+
+    @Test
+    public void testImportCreatesParentsBeforeChildren() throws Exception {
+        write("imported/a/b/file");
+        write("imported/a/file");
+        write("imported/c/file");
+
+        importSubtree("imported");
+        awaitAccepted(6);
+
+        for (String path : accepted) {
+            String parent = path.substring(0, path.lastIndexOf('/'));
+            if (!parent.equals("imported"))
+                assertTrue(parent + " after " + path, accepted.indexOf(parent) < accepted.indexOf(path));
+        }
+    }
+
+    @Test
+    public void testImportSkipsUnreadableEntries() throws Exception {
+        write("imported/locked/file");
+        write("imported/open/file");
+        Path locked = root.resolve("imported/locked");
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+        try {
+            Assume.assumeFalse("Permissions are not enforced for this user", Files.isReadable(locked));
+
+            importSubtree("imported");
+            awaitAccepted(3);
+            Thread.sleep(200);
+
+            assertEquals(Arrays.asList("imported/locked", "imported/open", "imported/open/file"), sorted(accepted));
+        } finally {
+            Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+
+    @Test
+    public void testImportSkipsContentOfDirectoryNotCreated() throws Exception {
+        write("imported/failed/file");
+        write("imported/open/file");
+        answer = event -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (event.getKoxFile().getPath().equals("imported/failed"))
+                future.completeExceptionally(new IllegalStateException("Drive unavailable"));
+            else
+                future.complete(null);
+            return future;
+        };
+
+        importSubtree("imported");
+        awaitAccepted(3);
+        Thread.sleep(200);
+
+        assertEquals(Arrays.asList("imported/failed", "imported/open", "imported/open/file"), sorted(accepted));
+    }
+
+    @Test
+    public void testDriveMoveIsAppliedLocally() throws IOException {
+        write("a.txt");
+        String md5 = synchronizer.getChecksum(local("a.txt", FileType.REGULAR_FILE));
+        when(drive.getChecksum(any(KoxFile.class))).thenReturn(md5);
+
+        synchronizer.process(moved("a.txt", "docs/b.txt", FileType.REGULAR_FILE));
+
+        assertFalse(Files.exists(root.resolve("a.txt")));
+        assertEquals("a.txt", read("docs/b.txt"));
+        verify(syncStateStore).moveRecords("a.txt", "docs/b.txt");
+        verify(drive, never()).openTransfer(any(KoxFile.class));
+    }
+
+    @Test
+    public void testDriveMoveOverExistingFileLeavesBothUntouched() throws IOException {
+        write("a.txt");
+        write("b.txt");
+
+        synchronizer.process(moved("a.txt", "b.txt", FileType.REGULAR_FILE));
+
+        assertEquals("a.txt", read("a.txt"));
+        assertEquals("b.txt", read("b.txt"));
+        verify(syncStateStore, never()).moveRecords(anyString(), anyString());
+    }
+
+    @Test
+    public void testFailedDriveMoveOfDirectoryKeepsItWatched() throws IOException {
+        write("photos/beach.jpg");
+        write("albums");
+
+        synchronizer.process(moved("photos", "albums/2017", FileType.DIR));
+
+        assertEquals("photos/beach.jpg", read("photos/beach.jpg"));
+        verify(syncStateStore, never()).moveRecords(anyString(), anyString());
+        verify(fileSystemWatcher, never()).directoryRemoved(any(Path.class));
+    }
+
+    @Test
+    public void testDriveMoveOfDirectoryStopsWatchingPreviousPath() throws IOException {
+        write("photos/beach.jpg");
+
+        synchronizer.process(moved("photos", "albums/2017", FileType.DIR));
+
+        assertEquals("photos/beach.jpg", read("albums/2017/beach.jpg"));
+        verify(syncStateStore).moveRecords("photos", "albums/2017");
+        verify(fileSystemWatcher).directoryRemoved(root.resolve("photos"));
+    }
+
+    @Test
+    public void testFileMovedAndChangedInDriveIsDownloadedAfterMove() throws IOException {
+        write("a.txt");
+        byte[] changed = "changed in Drive".getBytes();
+        when(drive.getChecksum(any(KoxFile.class))).thenReturn("changed-md5");
+        when(drive.openTransfer(any(KoxFile.class))).thenReturn(TransferSource.builder()
+                .channel(Channels.newChannel(new ByteArrayInputStream(changed)))
+                .contentLength((long) changed.length)
+                .build());
+
+        synchronizer.process(moved("a.txt", "docs/b.txt", FileType.REGULAR_FILE));
+
+        assertFalse(Files.exists(root.resolve("a.txt")));
+        assertEquals("changed in Drive", read("docs/b.txt"));
+        verify(syncStateStore).moveRecords("a.txt", "docs/b.txt");
+    }
+
+    private FileEvent moved(String previousPath, String path, FileType fileType) {
+        KoxFile koxFile = KoxFile.builder()
+                .source(drive)
+                .id("drive-id")
+                .path(path)
+                .name(path.substring(path.lastIndexOf('/') + 1))
+                .fileType(fileType)
+                .modificationDate(new Date())
+                .previousPath(previousPath)
+                .build();
+        return FileEvent.builder().koxFile(koxFile).eventType(EventType.MOVE).timestamp(System.currentTimeMillis()).build();
+    }
+
+    private KoxFile local(String path, FileType fileType) {
+        return KoxFile.builder()
+                .source(synchronizer)
+                .id(path)
+                .path(path)
+                .name(path)
+                .fileType(fileType)
+                .build();
+    }
+
+    private String read(String path) throws IOException {
+        return new String(Files.readAllBytes(root.resolve(path)));
+    }
+
+    private void importSubtree(String path) {
+        synchronizer.importSubtree(local(path, FileType.DIR));
+    }
+
+    private void write(String path) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, path.getBytes());
+    }
+
+    private void awaitAccepted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (accepted.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(count, accepted.size());
+    }
+
+    private static List<String> sorted(List<String> paths) {
+        List<String> sorted = new ArrayList<>(paths);
+        sorted.sort(null);
+        return sorted;
+    }
+}
@@ -0,0 +1,119 @@
+package com.dropkox.synchronizer.filesystem;
+
+import com.dropkox.core.io.BufferPool;
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.synchronizer.TransferSource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LocalFileWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final SyncMetrics syncMetrics = new SyncMetrics();
+    private LocalFileWriter writer;
+    private Path directory;
+
+    @Before
+    public void setUp() {
+        writer = new LocalFileWriter(new BufferPool(4096, 2), syncMetrics);
+        directory = temporaryFolder.getRoot().toPath();
+    }
+
+    @Test
+    public void testStreamReplacesExistingFile() throws IOException {
+        Path target = Files.write(directory.resolve("notes.txt"), "old".getBytes());
+
+        assertEquals(3, writer.write(transferOf("new".getBytes(), "22af645d1859cb5ca6da0c484f1f37ea"), target));
+
+        assertArrayEquals("new".getBytes(), Files.readAllBytes(target));
+        assertOnlyFile(target);
+        assertEquals(3, syncMetrics.get("local.transfer.bytes"));
+    }
+
+    @Test
+    public void testChannelCopy() throws IOException {
+        byte[] content = new byte[3 * 1024 * 1024 + 7];
+        content[content.length - 1] = 42;
+        Path source = Files.write(temporaryFolder.newFolder("other-root").toPath().resolve("big.bin"), content);
+        Path target = directory.resolve("big.bin");
+
+        assertEquals(content.length, writer.copy(source, target));
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(1, syncMetrics.get("local.transfer.files"));
+    }
+
+    @Test
+    public void testFailedWriteKeepsTargetAndLeavesNoTemporaryFile() throws IOException {
+        Path target = Files.write(directory.resolve("notes.txt"), "old".getBytes());
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+
+        try {
+            writer.write(TransferSource.builder().channel(Channels.newChannel(failing)).build(), target);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertArrayEquals("old".getBytes(), Files.readAllBytes(target));
+        assertOnlyFile(target);
+    }
+
+    @Test
+    public void testCorruptedContentIsNotMovedIntoPlace() throws IOException {
+        Path target = Files.write(directory.resolve("notes.txt"), "old".getBytes());
+
+        try {
+            writer.write(transferOf("new".getBytes(), "00000000000000000000000000000000"), target);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertArrayEquals("old".getBytes(), Files.readAllBytes(target));
+        assertOnlyFile(target);
+        assertEquals(1, syncMetrics.get("local.transfer.checksum.mismatches"));
+    }
+
+    @Test
+    public void testTemporaryFilesAreRecognized() {
+        assertTrue(LocalFileWriter.isTemporary(Paths.get("photos/.dropkox.beach.jpg.1234")));
+        assertFalse(LocalFileWriter.isTemporary(Paths.get("photos/beach.jpg")));
+    }
+
+    private static TransferSource transferOf(byte[] content, String md5) {
+        return TransferSource.builder()
+                .channel(Channels.newChannel(new ByteArrayInputStream(content)))
+                .contentLength((long) content.length)
+                .md5(md5)
+                .build();
+    }
+
+    private void assertOnlyFile(Path expected) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            assertArrayEquals(new Object[]{expected}, files.toArray());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.dropkox.synchronizer.state;
+
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SyncStateStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private SyncStateStore syncStateStore;
+
+    @Before
+    public void setUp() throws IOException {
+        syncStateStore = open();
+    }
+
+    @Test
+    public void testStateSurvivesRestartWithoutClose() throws IOException {
+        syncStateStore.setChangeToken("42");
+        syncStateStore.putRecord(SyncRecord.builder().path("a/b.txt").remoteId("id1").remoteMd5("md5").build());
+        syncStateStore.putRecord(SyncRecord.builder().path("c.txt").remoteId("id2").build());
+        syncStateStore.removeRecord("c.txt");
+        long completed = syncStateStore.beginOperation(operation("x.txt"));
+        long pending = syncStateStore.beginOperation(operation("y.txt"));
+        syncStateStore.completeOperation(completed);
+
+        SyncStateStore reopened = open();
+
+        assertEquals("42", reopened.getChangeToken());
+        assertEquals("id1", reopened.getRecord("a/b.txt").getRemoteId());
+        assertNull(reopened.getRecord("c.txt"));
+        assertEquals(1, reopened.getPendingOperations().size());
+        assertEquals(pending, reopened.getPendingOperations().get(0).getId());
+        assertEquals(pending + 1, reopened.beginOperation(operation("z.txt")));
+    }
+
+    @Test
+    public void testTornJournalTailIsIgnored() throws IOException {
+        syncStateStore.setChangeToken("1");
+        syncStateStore.setChangeToken("2");
+        Path journal = temporaryFolder.getRoot().toPath().resolve("sync-state.journal");
+        Files.write(journal, new byte[]{0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+
+        SyncStateStore reopened = open();
+
+        assertEquals("2", reopened.getChangeToken());
+    }
+
+    @Test
+    public void testMoveTakesRecordsOfSubtreeAlong() throws IOException {
+        syncStateStore.putRecord(SyncRecord.builder().path("photos").remoteId("folder").build());
+        syncStateStore.putRecord(SyncRecord.builder().path("photos/beach.jpg").remoteId("beach").build());
+        syncStateStore.putRecord(SyncRecord.builder().path("photos-old/lake.jpg").remoteId("lake").build());
+        PendingOperation move = operation("albums/beach.jpg");
+        move.setEventType(EventType.MOVE);
+        move.setPreviousPath("photos/beach.jpg");
+        syncStateStore.beginOperation(move);
+
+        assertEquals(2, syncStateStore.moveRecords("photos", "albums/2017"));
+
+        SyncStateStore reopened = open();
+        assertNull(reopened.getRecord("photos/beach.jpg"));
+        assertEquals("beach", reopened.getRecord("albums/2017/beach.jpg").getRemoteId());
+        assertEquals("folder", reopened.getRecord("albums/2017").getRemoteId());
+        assertEquals("lake", reopened.getRecord("photos-old/lake.jpg").getRemoteId());
+        assertEquals("photos/beach.jpg", reopened.getPendingOperations().get(0).getPreviousPath());
+    }
+
+    @Test
+    public void testConcurrentWritesSurviveRestart() throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<Long>> operations = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String path = "file-" + i;
+            operations.add(writers.submit(() -> {
+                syncStateStore.putRecord(SyncRecord.builder().path(path).remoteId(path).build());
+                return syncStateStore.beginOperation(operation(path));
+            }));
+        }
+        for (Future<Long> operation : operations)
+            operation.get(10, TimeUnit.SECONDS);
+        writers.shutdown();
+
+        SyncStateStore reopened = open();
+
+        for (int i = 0; i < 200; i++)
+            assertEquals("file-" + i, reopened.getRecord("file-" + i).getRemoteId());
+        assertEquals(200, reopened.getPendingOperations().size());
+    }
+
+    private SyncStateStore open() throws IOException {
+        SyncStateStore store = new SyncStateStore();
+        ReflectionTestUtils.setField(store, "stateDir", temporaryFolder.getRoot().getPath());
+        store.open();
+        return store;
+    }
+
+    private static PendingOperation operation(String path) {
+        return PendingOperation.builder()
+                .source("FilesystemSynchronizer")
+                .eventType(EventType.MODIFY)
+                .fileType(FileType.REGULAR_FILE)
+                .fileId(path)
+                .path(path)
+                .name(path)
+                .build();
+    }
+}
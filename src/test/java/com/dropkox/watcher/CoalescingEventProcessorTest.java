@@ -0,0 +1,115 @@
+package com.dropkox.watcher;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoalescingEventProcessorTest {
+
+    private final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+    private SyncMetrics syncMetrics;
+    private CoalescingEventProcessor coalescer;
+
+    @Before
+    public void setUp() {
+        syncMetrics = new SyncMetrics();
+        coalescer = new CoalescingEventProcessor((path, eventType, fileType) -> processed.add(eventType + " " + path),
+                60_000, syncMetrics);
+    }
+
+    @Test
+    public void testEditorSaveBurstBecomesSingleEvent() {
+        Path path = Paths.get("doc.txt");
+        coalescer.processFilesystemEvent(path, EventType.CREATE, FileType.REGULAR_FILE);
+        coalescer.processFilesystemEvent(path, EventType.MODIFY, FileType.REGULAR_FILE);
+        coalescer.processFilesystemEvent(path, EventType.MODIFY, FileType.REGULAR_FILE);
+        coalescer.close();
+
+        assertEquals(Collections.singletonList("CREATE doc.txt"), processed);
+        assertEquals(2, syncMetrics.get("watcher.events.folded"));
+    }
+
+    @Test
+    public void testTemporaryFileLeavesNoEvent() {
+        Path path = Paths.get("doc.txt~");
+        coalescer.processFilesystemEvent(path, EventType.CREATE, FileType.REGULAR_FILE);
+        coalescer.processFilesystemEvent(path, EventType.MODIFY, FileType.REGULAR_FILE);
+        coalescer.processFilesystemEvent(path, EventType.DELETE, FileType.REGULAR_FILE);
+        coalescer.close();
+
+        assertEquals(Collections.emptyList(), processed);
+        assertEquals(2, syncMetrics.get("watcher.events.folded"));
+    }
+
+    @Test
+    public void testReplacedFileIsModification() {
+        Path replaced = Paths.get("a.txt");
+        Path other = Paths.get("b.txt");
+        coalescer.processFilesystemEvent(replaced, EventType.DELETE, FileType.REGULAR_FILE);
+        coalescer.processFilesystemEvent(other, EventType.MODIFY, FileType.REGULAR_FILE);
+        coalescer.processFilesystemEvent(replaced, EventType.CREATE, FileType.REGULAR_FILE);
+        coalescer.close();
+
+        assertEquals(Arrays.asList("MODIFY a.txt", "MODIFY b.txt"), processed);
+    }
+
+    @Test
+    public void testReplacedDirectoryIsCreate() {
+        Path replaced = Paths.get("photos");
+        coalescer.processFilesystemEvent(replaced, EventType.DELETE, FileType.DIR);
+        coalescer.processFilesystemEvent(replaced, EventType.CREATE, FileType.DIR);
+        coalescer.close();
+
+        assertEquals(Collections.singletonList("CREATE photos"), processed);
+        assertEquals(1, syncMetrics.get("watcher.events.folded"));
+    }
+
+    @Test
+    public void testFileCreatedAndMovedIsCreateAtNewPath() {
+        coalescer.processFilesystemEvent(Paths.get("draft.txt"), EventType.CREATE, FileType.REGULAR_FILE);
+        coalescer.processFilesystemMove(Paths.get("draft.txt"), Paths.get("docs/final.txt"), FileType.REGULAR_FILE);
+        coalescer.close();
+
+        assertEquals(Collections.singletonList("CREATE docs/final.txt"), processed);
+    }
+
+    @Test
+    public void testEventIsPassedOnAfterQuietWindow() throws InterruptedException {
+        coalescer.close();
+        coalescer = new CoalescingEventProcessor((path, eventType, fileType) -> processed.add(eventType + " " + path),
+                20, syncMetrics);
+        coalescer.processFilesystemEvent(Paths.get("x"), EventType.MODIFY, FileType.REGULAR_FILE);
+        Thread.sleep(200);
+
+        assertEquals(Collections.singletonList("MODIFY x"), processed);
+    }
+
+    @Test
+    public void testHeldEventsArePassedOnAfterRelease() throws InterruptedException {
+        coalescer.close();
+        coalescer = new CoalescingEventProcessor((path, eventType, fileType) -> processed.add(eventType + " " + path),
+                20, syncMetrics);
+        coalescer.hold();
+        coalescer.processFilesystemEvent(Paths.get("x"), EventType.MODIFY, FileType.REGULAR_FILE);
+        coalescer.processFilesystemMove(Paths.get("a"), Paths.get("b"), FileType.REGULAR_FILE);
+        Thread.sleep(200);
+
+        assertEquals(Collections.emptyList(), processed);
+
+        coalescer.release();
+        Thread.sleep(200);
+
+        assertEquals(Arrays.asList("MODIFY x", "DELETE a", "CREATE b"), processed);
+    }
+}
@@ -0,0 +1,71 @@
+package com.dropkox.watcher;
+
+import com.dropkox.model.EventType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectorySnapshotTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testDiffReportsLostEvents() throws IOException {
+        Path dir = temporaryFolder.getRoot().toPath();
+        Files.write(dir.resolve("kept.txt"), "kept".getBytes());
+        Files.write(dir.resolve("changed.txt"), "before".getBytes());
+        Files.write(dir.resolve("removed.txt"), "removed".getBytes());
+        Files.createDirectory(dir.resolve("album"));
+        DirectorySnapshot previous = DirectorySnapshot.take(dir);
+
+        Files.write(dir.resolve("changed.txt"), "after, longer".getBytes());
+        Files.delete(dir.resolve("removed.txt"));
+        Files.write(dir.resolve("added.txt"), "added".getBytes());
+        Files.createDirectory(dir.resolve("new-album"));
+        List<DirectorySnapshot.Change> changes = previous.diff(DirectorySnapshot.take(dir));
+
+        assertEquals(new HashSet<>(Arrays.asList(
+                new DirectorySnapshot.Change("changed.txt", EventType.MODIFY, false),
+                new DirectorySnapshot.Change("removed.txt", EventType.DELETE, false),
+                new DirectorySnapshot.Change("added.txt", EventType.CREATE, false),
+                new DirectorySnapshot.Change("new-album", EventType.CREATE, true))), new HashSet<>(changes));
+    }
+
+    @Test
+    public void testFileReplacedByDirectoryIsDeleteThenCreate() throws IOException {
+        Path dir = temporaryFolder.getRoot().toPath();
+        Path entry = dir.resolve("entry");
+        Files.write(entry, "file".getBytes());
+        DirectorySnapshot previous = DirectorySnapshot.take(dir);
+
+        Files.delete(entry);
+        Files.createDirectory(entry);
+
+        assertEquals(Arrays.asList(
+                new DirectorySnapshot.Change("entry", EventType.DELETE, false),
+                new DirectorySnapshot.Change("entry", EventType.CREATE, true)), previous.diff(DirectorySnapshot.take(dir)));
+    }
+
+    @Test
+    public void testUpdateForgetsMissingChild() throws IOException {
+        Path dir = temporaryFolder.getRoot().toPath();
+        Path file = Files.write(dir.resolve("a.txt"), "a".getBytes());
+        DirectorySnapshot snapshot = DirectorySnapshot.take(dir);
+
+        Files.delete(file);
+        snapshot.update(file);
+
+        assertTrue(snapshot.diff(DirectorySnapshot.take(dir)).isEmpty());
+    }
+}
@@ -0,0 +1,86 @@
+package com.dropkox.watcher;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MoveDetectorTest {
+
+    private final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+    private SyncMetrics syncMetrics;
+    private MoveDetector moveDetector;
+
+    @Before
+    public void setUp() {
+        syncMetrics = new SyncMetrics();
+        moveDetector = new MoveDetector(new IFileSystemEventProcessor() {
+            @Override
+            public void processFilesystemEvent(Path path, EventType eventType, FileType fileType) {
+                processed.add(eventType + " " + path);
+            }
+
+            @Override
+            public void processFilesystemMove(Path fromPath, Path toPath, FileType fileType) {
+                processed.add("MOVE " + fromPath + " " + toPath);
+            }
+        }, 60_000, syncMetrics);
+    }
+
+    @After
+    public void tearDown() {
+        moveDetector.close();
+    }
+
+    @Test
+    public void testDeleteAndCreateOfSameFileIsMove() {
+        moveDetector.deleted(Paths.get("photos"), FileType.DIR, entry(4096, 1000, true, 42L));
+        moveDetector.created(Paths.get("albums/photos"), FileType.DIR, entry(4096, 2000, true, 42L));
+
+        assertEquals(Collections.singletonList("MOVE photos albums/photos"), processed);
+        assertEquals(1, syncMetrics.get("watcher.moves"));
+    }
+
+    @Test
+    public void testCreateReportedBeforeDeleteIsMove() {
+        moveDetector.created(Paths.get("b.txt"), FileType.REGULAR_FILE, entry(10, 1000, false, 7L));
+        moveDetector.deleted(Paths.get("a.txt"), FileType.REGULAR_FILE, entry(10, 1000, false, 7L));
+
+        assertEquals(Collections.singletonList("MOVE a.txt b.txt"), processed);
+    }
+
+    @Test
+    public void testReusedKeyOfDifferentFileIsNoMove() {
+        moveDetector.deleted(Paths.get("a.txt"), FileType.REGULAR_FILE, entry(10, 1000, false, 7L));
+        moveDetector.created(Paths.get("b.txt"), FileType.REGULAR_FILE, entry(99, 5000, false, 7L));
+        moveDetector.close();
+
+        assertEquals(Arrays.asList("DELETE a.txt", "CREATE b.txt"), processed);
+    }
+
+    @Test
+    public void testUnpairedEventIsPassedOnAfterWindow() throws InterruptedException {
+        moveDetector.close();
+        moveDetector = new MoveDetector((path, eventType, fileType) -> processed.add(eventType + " " + path), 20, syncMetrics);
+        moveDetector.deleted(Paths.get("a.txt"), FileType.REGULAR_FILE, entry(10, 1000, false, 7L));
+        moveDetector.created(Paths.get("c.txt"), FileType.REGULAR_FILE, entry(10, 1000, false, null));
+        Thread.sleep(200);
+
+        assertEquals(Arrays.asList("CREATE c.txt", "DELETE a.txt"), processed);
+    }
+
+    private static DirectorySnapshot.Entry entry(long size, long modifiedMillis, boolean directory, Object fileKey) {
+        return new DirectorySnapshot.Entry(size, modifiedMillis, directory, fileKey);
+    }
+}
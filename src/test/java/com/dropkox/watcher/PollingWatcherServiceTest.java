@@ -0,0 +1,69 @@
+package com.dropkox.watcher;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PollingWatcherServiceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final BlockingQueue<String> processed = new LinkedBlockingQueue<>();
+    private final SyncMetrics syncMetrics = new SyncMetrics();
+    private Path root;
+    private PollingWatcherService watcherService;
+
+    @Before
+    public void setUp() throws Exception {
+        root = temporaryFolder.getRoot().toPath();
+        Files.createDirectories(root.resolve("photos/2017"));
+        Files.write(root.resolve("photos/2017/beach.jpg"), "beach".getBytes());
+        watcherService = new PollingWatcherService((path, eventType, fileType) -> processed.add(eventType + " " + fileType + " " + path),
+                root.toFile(), syncMetrics, WatcherSettings.builder().pollIntervalMillis(20).maxPollIntervalMillis(40).build());
+        watcherService.init();
+        watcherService.getInitialSnapshot().get(5, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        watcherService.cleanup();
+    }
+
+    @Test
+    public void testChangesInNestedDirectoryAreReported() throws Exception {
+        Files.write(root.resolve("photos/2017/mountains.jpg"), "mountains".getBytes());
+        Files.createDirectory(root.resolve("photos/2018"));
+
+        assertEquals(new HashSet<>(Arrays.asList("CREATE REGULAR_FILE photos/2017/mountains.jpg", "CREATE DIR photos/2018")),
+                new HashSet<>(Arrays.asList(processed.poll(5, TimeUnit.SECONDS), processed.poll(5, TimeUnit.SECONDS))));
+
+        Files.delete(root.resolve("photos/2017/beach.jpg"));
+
+        assertEquals("DELETE REGULAR_FILE photos/2017/beach.jpg", processed.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInPlaceModificationIsFoundByFullCycle() throws Exception {
+        Files.write(root.resolve("photos/2017/beach.jpg"), "beach, edited".getBytes());
+
+        assertEquals("MODIFY REGULAR_FILE photos/2017/beach.jpg", processed.poll(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertTrue(syncMetrics.get("watcher.polling.cycles") > 0);
+        assertTrue(syncMetrics.get("watcher.polling.listings") > 0);
+    }
+}
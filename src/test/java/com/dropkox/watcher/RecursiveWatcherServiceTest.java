@@ -0,0 +1,111 @@
+package com.dropkox.watcher;
+
+import com.dropkox.core.metrics.SyncMetrics;
+import com.dropkox.model.EventType;
+import com.dropkox.model.FileType;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecursiveWatcherServiceTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final CountDownLatch slowReleased = new CountDownLatch(1);
+    private final CountDownLatch fastProcessed = new CountDownLatch(1);
+    private RecursiveWatcherService watcherService;
+
+    @After
+    public void tearDown() {
+        slowReleased.countDown();
+        watcherService.cleanup();
+    }
+
+    @Test
+    public void testBlockedHandlerDoesNotStallOtherDirectories() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        Path slowDir = Files.createDirectories(root.resolve("slow"));
+        watcherService = new RecursiveWatcherService((path, eventType, fileType) -> {
+            if (path.toString().equals("slow/slow.txt")) {
+                awaitQuietly(slowReleased);
+            } else if (path.toString().equals("fast.txt") && eventType == EventType.CREATE) {
+                fastProcessed.countDown();
+            }
+        }, root.toFile(), new SyncMetrics(), WatcherSettings.builder()
+                .handlerThreads(2).registrationThreads(1).maxWatches(100).coldPollIntervalMillis(60_000).build());
+        watcherService.init();
+        watcherService.getRegistration().get(10, TimeUnit.SECONDS);
+
+        Files.write(slowDir.resolve("slow.txt"), "slow".getBytes());
+        Thread.sleep(500);
+        Files.write(root.resolve("fast.txt"), "fast".getBytes());
+
+        assertTrue(fastProcessed.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDirectoriesBeyondWatchLimitArePolled() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        Path cold = Files.createDirectories(root.resolve("archive/2016"));
+        SyncMetrics syncMetrics = new SyncMetrics();
+        watcherService = new RecursiveWatcherService((path, eventType, fileType) -> {
+            if (path.endsWith("archive/2016/old.txt") && eventType == EventType.CREATE)
+                fastProcessed.countDown();
+        }, root.toFile(), syncMetrics, WatcherSettings.builder()
+                .handlerThreads(1).registrationThreads(2).maxWatches(1).coldPollIntervalMillis(50).build());
+        watcherService.init();
+        watcherService.getRegistration().get(10, TimeUnit.SECONDS);
+
+        Files.write(cold.resolve("old.txt"), "old".getBytes());
+
+        assertTrue(fastProcessed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, syncMetrics.metrics().stream()
+                .filter(metric -> metric.getName().equals("gauge.watcher.directories.watched"))
+                .mapToInt(metric -> metric.getValue().intValue()).sum());
+    }
+
+    @Test
+    public void testRenamedDirectoryIsReportedAsMove() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        Files.createDirectories(root.resolve("photos/2017"));
+        BlockingQueue<String> processed = new LinkedBlockingQueue<>();
+        watcherService = new RecursiveWatcherService(new IFileSystemEventProcessor() {
+            @Override
+            public void processFilesystemEvent(Path path, EventType eventType, FileType fileType) {
+                processed.add(eventType + " " + path);
+            }
+
+            @Override
+            public void processFilesystemMove(Path fromPath, Path toPath, FileType fileType) {
+                processed.add("MOVE " + fromPath + " " + toPath);
+            }
+        }, root.toFile(), new SyncMetrics(), WatcherSettings.builder()
+                .handlerThreads(2).registrationThreads(1).maxWatches(100).coldPollIntervalMillis(60_000).moveWindowMillis(500).build());
+        watcherService.init();
+        watcherService.getRegistration().get(10, TimeUnit.SECONDS);
+
+        Files.move(root.resolve("photos/2017"), root.resolve("photos/summer-2017"));
+
+        assertEquals("MOVE /photos/2017 /photos/summer-2017", processed.poll(10, TimeUnit.SECONDS));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.dropkox.watcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WatchKeyRegistryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private WatchService watchService;
+    private WatchKeyRegistry registry;
+
+    @Before
+    public void setUp() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        registry = new WatchKeyRegistry();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        watchService.close();
+    }
+
+    @Test
+    public void testSubtreeRemovalKeepsSiblingsWithCommonPrefix() throws IOException {
+        Path root = temporaryFolder.getRoot().toPath();
+        WatchKey photos = register(root.resolve("photos"));
+        WatchKey nested = register(root.resolve("photos/2017/summer"));
+        WatchKey sibling = register(root.resolve("photos-old"));
+
+        assertEquals(2, registry.removeSubtree(root.resolve("photos")));
+
+        assertFalse(photos.isValid());
+        assertFalse(nested.isValid());
+        assertTrue(sibling.isValid());
+        assertEquals(root.resolve("photos-old"), registry.getDirectory(sibling));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testInvalidKeyIsForgotten() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath().resolve("docs");
+        WatchKey key = register(directory);
+
+        registry.remove(key);
+
+        assertFalse(registry.isRegistered(directory));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testSubtreeRemovalForgetsPolledDirectories() throws IOException {
+        Path root = temporaryFolder.getRoot().toPath();
+        register(root.resolve("photos"));
+        registry.registerPolled(root.resolve("photos/2017"));
+        registry.registerPolled(root.resolve("music"));
+
+        assertEquals(2, registry.removeSubtree(root.resolve("photos")));
+
+        assertEquals(1, registry.polledSize());
+        assertEquals(root.resolve("music"), registry.getPolledDirectories().iterator().next());
+    }
+
+    private WatchKey register(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        WatchKey key = directory.register(watchService, ENTRY_CREATE);
+        registry.register(directory, key);
+        return key;
+    }
+}